@@ -14,6 +14,7 @@ import androidx.appcompat.app.AppCompatActivity;
 
 import com.cs213.androidphotos.R;
 import com.cs213.androidphotos.model.Album;
+import com.cs213.androidphotos.model.AlbumSummary;
 import com.cs213.androidphotos.util.AppDataManager;
 
 public class MainActivity extends AppCompatActivity {
@@ -23,20 +24,22 @@ public class MainActivity extends AppCompatActivity {
     private EditText newAlbumNameEditText;
     private Button createAlbumButton;
     private Button searchButton;
+    private TextView loadingTextView;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        // Initialize AppDataManager
-        dataManager = AppDataManager.getInstance(this);
+        // Initialize AppDataManager; the albums may still be loading in the background
+        dataManager = AppDataManager.init(this);
 
         // Initialize UI components FROM XML
         albumsGrid = findViewById(R.id.albumsGrid);
         newAlbumNameEditText = findViewById(R.id.newAlbumNameEditText);
         createAlbumButton = findViewById(R.id.createAlbumButton);
         searchButton = findViewById(R.id.searchButton);
+        loadingTextView = findViewById(R.id.loadingTextView);
 
         albumsGrid.setColumnCount(1);
 
@@ -46,17 +49,45 @@ public class MainActivity extends AppCompatActivity {
             startActivity(new Intent(this, SearchActivity.class));
         });
 
-        // Display albums
+        // Display albums right away; until the data has loaded they come from the manifest
         displayAlbums();
+        if (!dataManager.isReady()) {
+            showLoading(true);
+            dataManager.whenReady(() -> {
+                if (!isDestroyed()) {
+                    showLoading(false);
+                    displayAlbums();
+                    if (dataManager.isReadOnly()) {
+                        Toast.makeText(this, R.string.error_loading_albums, Toast.LENGTH_LONG).show();
+                    }
+                }
+            });
+        }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         // Refresh the albums display when returning to this activity
-        displayAlbums();
+        if (dataManager.isReady()) {
+            displayAlbums();
+        }
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (dataManager.isReady()) {
+            dataManager.flush();
+        }
+    }
+
+    private void showLoading(boolean loading) {
+        boolean showPlaceholder = loading && albumsGrid.getChildCount() == 0;
+        loadingTextView.setVisibility(showPlaceholder ? View.VISIBLE : View.GONE);
+        createAlbumButton.setEnabled(!loading);
+        searchButton.setEnabled(!loading);
+    }
 
     private void createNewAlbum() {
         String albumName = newAlbumNameEditText.getText().toString().trim();
@@ -77,19 +108,26 @@ public class MainActivity extends AppCompatActivity {
 
     private void displayAlbums() {
         albumsGrid.removeAllViews();
+        // Renaming and deleting need the full album data
+        boolean ready = dataManager.isReady();
     
-        for (Album album : dataManager.getAlbums()) {
+        for (AlbumSummary album : dataManager.getAlbumSummaries()) {
             View albumView = getLayoutInflater().inflate(R.layout.item_album, albumsGrid, false);
             TextView albumNameTextView = albumView.findViewById(R.id.albumNameTextView);
+            TextView photoCountTextView = albumView.findViewById(R.id.photoCountTextView);
             Button openButton = albumView.findViewById(R.id.openAlbumButton);
             Button deleteButton = albumView.findViewById(R.id.deleteAlbumButton);
             Button renameButton = albumView.findViewById(R.id.renameAlbumButton);
     
             albumNameTextView.setText(album.getName());
+            photoCountTextView.setText(getResources().getQuantityString(
+                    R.plurals.photo_count, album.getPhotoCount(), album.getPhotoCount()));
     
-            openButton.setOnClickListener(v -> openAlbum(album));
-            deleteButton.setOnClickListener(v -> confirmDeleteAlbum(album));
-            renameButton.setOnClickListener(v -> showRenameDialog(album));
+            openButton.setOnClickListener(v -> openAlbum(album.getName()));
+            deleteButton.setOnClickListener(v -> confirmDeleteAlbum(album.getName()));
+            renameButton.setOnClickListener(v -> showRenameDialog(album.getName()));
+            deleteButton.setEnabled(ready);
+            renameButton.setEnabled(ready);
             
             // Set explicit layout parameters for the grid
             GridLayout.LayoutParams params = new GridLayout.LayoutParams();
@@ -105,13 +143,18 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void openAlbum(Album album) {
+    private void openAlbum(String albumName) {
         Intent intent = new Intent(MainActivity.this, AlbumActivity.class);
-        intent.putExtra("albumName", album.getName());
+        intent.putExtra("albumName", albumName);
         startActivity(intent);
     }
 
-    private void confirmDeleteAlbum(Album album) {
+    private void confirmDeleteAlbum(String albumName) {
+        Album album = dataManager.getAlbum(albumName);
+        if (album == null) {
+            return;
+        }
+
         new AlertDialog.Builder(this)
                 .setTitle(R.string.dialog_delete_album_title)
                 .setMessage(R.string.dialog_delete_album_message)
@@ -123,7 +166,12 @@ public class MainActivity extends AppCompatActivity {
                 .show();
     }
 
-    private void showRenameDialog(Album album) {
+    private void showRenameDialog(String albumName) {
+        Album album = dataManager.getAlbum(albumName);
+        if (album == null) {
+            return;
+        }
+
         EditText input = new EditText(this);
         input.setText(album.getName());
 
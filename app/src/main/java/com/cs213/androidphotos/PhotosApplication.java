@@ -0,0 +1,19 @@
+package com.cs213.androidphotos;
+
+import android.app.Application;
+
+import com.cs213.androidphotos.util.AppDataManager;
+
+/**
+ * Application class for the Photos application.
+ * Starts loading album data as soon as the process starts, so it is usually
+ * ready by the time the first activity needs it.
+ */
+public class PhotosApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        AppDataManager.init(this);
+    }
+}
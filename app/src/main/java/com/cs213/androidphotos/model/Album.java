@@ -1,5 +1,9 @@
 package com.cs213.androidphotos.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -12,8 +16,16 @@ public class Album implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    // The photos were serialized as a plain List by earlier versions; keep that form
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("name", String.class),
+            new ObjectStreamField("photos", List.class),
+            new ObjectStreamField("lastModified", long.class)
+    };
+
     private String name;
-    private List<Photo> photos;
+    private transient PhotoList photos;
+    private long lastModified;
 
     /**
      * Creates a new album with the specified name.
@@ -22,7 +34,7 @@ public class Album implements Serializable {
      */
     public Album(String name) {
         this.name = name;
-        this.photos = new ArrayList<>();
+        this.photos = new PhotoList();
     }
 
     /**
@@ -44,7 +56,26 @@ public class Album implements Serializable {
     }
 
     /**
-     * Gets the list of photos in this album.
+     * Gets the time this album or its photos were last changed.
+     *
+     * @return the last-modified time in milliseconds since the epoch, or 0 if unknown
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Sets the time this album or its photos were last changed.
+     *
+     * @param lastModified the last-modified time in milliseconds since the epoch
+     */
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Gets the list of photos in this album. The list holds at most one photo
+     * per file path; see {@link PhotoList}.
      *
      * @return list of photos
      */
@@ -69,15 +100,27 @@ public class Album implements Serializable {
      * @return true if the photo was added, false if a duplicate exists
      */
     public boolean addPhoto(Photo photo) {
-        // Check for duplicates (same file path)
-        for (Photo existingPhoto : photos) {
-            if (existingPhoto.getFilePath().equals(photo.getFilePath())) {
-                return false; // Duplicate found
-            }
-        }
-
-        photos.add(photo);
-        return true;
+        return photos.add(photo);
+    }
+
+    /**
+     * Gets the photo in this album with the given file path.
+     *
+     * @param filePath the file path of the photo
+     * @return the photo, or null if the album has none with this path
+     */
+    public Photo getPhoto(String filePath) {
+        return photos.getByPath(filePath);
+    }
+
+    /**
+     * Checks whether this album holds a photo.
+     *
+     * @param photo the photo
+     * @return true if the photo is in this album
+     */
+    public boolean containsPhoto(Photo photo) {
+        return photos.contains(photo);
     }
 
     /**
@@ -90,6 +133,23 @@ public class Album implements Serializable {
         return photos.remove(photo);
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("name", name);
+        fields.put("photos", new ArrayList<>(photos));
+        fields.put("lastModified", lastModified);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        name = (String) fields.get("name", null);
+        List<Photo> saved = (List<Photo>) fields.get("photos", null);
+        photos = saved != null ? new PhotoList(saved) : new PhotoList();
+        lastModified = fields.get("lastModified", 0L);
+    }
+
     /**
      * Returns a string representation of this album.
      *
@@ -0,0 +1,85 @@
+package com.cs213.androidphotos.model;
+
+/**
+ * A lightweight description of an album, enough to list it on the home screen
+ * without loading its photos and tags.
+ */
+public class AlbumSummary {
+
+    private final String name;
+    private final int photoCount;
+    private final String coverPath;
+    private final long lastModified;
+
+    /**
+     * Creates a summary with the given details.
+     *
+     * @param name the album name
+     * @param photoCount the number of photos in the album
+     * @param coverPath the file path of the cover photo, or null if the album is empty
+     * @param lastModified the album's last-modified time in milliseconds since the epoch
+     */
+    public AlbumSummary(String name, int photoCount, String coverPath, long lastModified) {
+        this.name = name;
+        this.photoCount = photoCount;
+        this.coverPath = coverPath;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Creates a summary of a loaded album. The first photo is used as the cover.
+     *
+     * @param album the album to summarize
+     * @return the album summary
+     */
+    public static AlbumSummary of(Album album) {
+        String coverPath = album.getPhotos().isEmpty() ? null : album.getPhotos().get(0).getFilePath();
+        return new AlbumSummary(album.getName(), album.getPhotoCount(), coverPath, album.getLastModified());
+    }
+
+    /**
+     * Gets the album name.
+     *
+     * @return the album name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of photos in the album.
+     *
+     * @return the photo count
+     */
+    public int getPhotoCount() {
+        return photoCount;
+    }
+
+    /**
+     * Gets the file path of the album's cover photo.
+     *
+     * @return the cover photo path, or null if the album is empty
+     */
+    public String getCoverPath() {
+        return coverPath;
+    }
+
+    /**
+     * Gets the album's last-modified time.
+     *
+     * @return the last-modified time in milliseconds since the epoch, or 0 if unknown
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns a string representation of this summary.
+     *
+     * @return string representation
+     */
+    @Override
+    public String toString() {
+        return "Album: " + name + " (Photos: " + photoCount + ")";
+    }
+}
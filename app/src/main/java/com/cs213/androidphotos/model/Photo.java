@@ -1,6 +1,10 @@
 package com.cs213.androidphotos.model;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -8,13 +12,23 @@ import java.util.List;
 /**
  * Represents a photo in the Photos application.
  * A photo has a file path and tags.
+ * <p>
+ * Photos in the library are obtained from a {@link PhotoRegistry}, which
+ * keeps one Photo per file, shared by every album holding it.
  */
 public class Photo implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    // The tags were serialized as a plain List by earlier versions; keep that form
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("filePath", String.class),
+            new ObjectStreamField("tags", List.class)
+    };
+
     private String filePath;
-    private List<Tag> tags;
+    private transient TagList tags;
+    private transient int id;
 
     /**
      * Creates a new Photo with the specified file path.
@@ -23,7 +37,7 @@ public class Photo implements Serializable {
      */
     public Photo(String filePath) {
         this.filePath = filePath;
-        this.tags = new ArrayList<>();
+        this.tags = new TagList();
     }
 
     /**
@@ -35,6 +49,22 @@ public class Photo implements Serializable {
         return filePath;
     }
 
+    /**
+     * Gets the id assigned to this photo by the {@link PhotoRegistry}.
+     * Ids are small, dense integers, and a photo keeps its id for as long as
+     * it is in at least one album. The id is only meaningful while the photo
+     * is registered.
+     *
+     * @return the photo id
+     */
+    public int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
     /**
      * Gets the filename to use as caption.
      *
@@ -45,7 +75,8 @@ public class Photo implements Serializable {
     }
 
     /**
-     * Gets all tags for this photo.
+     * Gets all tags for this photo. The list holds at most one tag per type
+     * and value; see {@link TagList}.
      *
      * @return list of tags
      */
@@ -61,16 +92,7 @@ public class Photo implements Serializable {
      * @return true if tag was added, false if a duplicate exists
      */
     public boolean addTag(Tag tag) {
-        // Check for duplicate tags
-        for (Tag existingTag : tags) {
-            if (existingTag.getType().equalsIgnoreCase(tag.getType()) &&
-                    existingTag.getValue().equalsIgnoreCase(tag.getValue())) {
-                return false; // Duplicate tag found
-            }
-        }
-
-        tags.add(tag);
-        return true;
+        return tags.add(tag);
     }
 
     /**
@@ -91,9 +113,11 @@ public class Photo implements Serializable {
      */
     public List<Tag> getTagsByType(String type) {
         List<Tag> matchingTags = new ArrayList<>();
+        String normalizedType = Tag.normalizeType(type);
 
-        for (Tag tag : tags) {
-            if (tag.getType().equalsIgnoreCase(type)) {
+        for (int i = 0; i < tags.size(); i++) {
+            Tag tag = tags.get(i);
+            if (tag.getType().equals(normalizedType)) {
                 matchingTags.add(tag);
             }
         }
@@ -109,13 +133,38 @@ public class Photo implements Serializable {
      * @return true if the photo has the specified tag
      */
     public boolean hasTag(String type, String value) {
-        for (Tag tag : tags) {
-            if (tag.getType().equalsIgnoreCase(type) &&
-                    tag.getValue().equalsIgnoreCase(value)) {
-                return true;
+        return tags.find(Tag.normalizeType(type), Tag.normalize(value)) != null;
+    }
+
+    /**
+     * Checks if this photo has a tag equal to the given one, ignoring the
+     * case of the value.
+     *
+     * @param tag the tag
+     * @return true if the photo has the tag
+     */
+    public boolean hasTag(Tag tag) {
+        return tags.contains(tag);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("filePath", filePath);
+        fields.put("tags", new ArrayList<>(tags));
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        filePath = (String) fields.get("filePath", null);
+        tags = new TagList();
+        List<Tag> saved = (List<Tag>) fields.get("tags", null);
+        if (saved != null) {
+            for (Tag tag : saved) {
+                tags.add(tag);
             }
         }
-        return false;
     }
 
     /**
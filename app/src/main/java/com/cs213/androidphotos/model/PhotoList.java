@@ -0,0 +1,198 @@
+package com.cs213.androidphotos.model;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * The photos of an album, in insertion order, indexed by normalized file
+ * path so that duplicate checks, lookups by path and finding a photo to
+ * remove take constant time.
+ * <p>
+ * Like a set, the list holds at most one photo per path:
+ * {@link #add(Photo)} returns false for a duplicate, and the other methods
+ * that would add one throw {@link IllegalArgumentException}. Photos are
+ * compared by identity, as Photo does not override equals.
+ * <p>
+ * Each photo's position is remembered. Inserting or removing a photo shifts
+ * the photos after it, as in an ArrayList, and their positions are
+ * recomputed the next time one of them is looked up.
+ */
+public class PhotoList extends AbstractList<Photo> implements RandomAccess {
+
+    /**
+     * A photo and its last known position.
+     */
+    private static final class Slot {
+        private final Photo photo;
+        private int position;
+
+        private Slot(Photo photo, int position) {
+            this.photo = photo;
+            this.position = position;
+        }
+    }
+
+    private final ArrayList<Photo> photos;
+    private final Map<String, Slot> slots;
+    // Positions stored in slots are correct for the photos before this index
+    private int validPositions;
+
+    /**
+     * Creates an empty list.
+     */
+    public PhotoList() {
+        this.photos = new ArrayList<>();
+        this.slots = new HashMap<>();
+    }
+
+    /**
+     * Creates a list of the given photos, skipping any whose path is already
+     * in the list.
+     *
+     * @param photos the photos, in order
+     */
+    public PhotoList(Collection<? extends Photo> photos) {
+        this.photos = new ArrayList<>(photos.size());
+        this.slots = new HashMap<>(Math.max(16, (int) (photos.size() / 0.75f) + 1));
+        for (Photo photo : photos) {
+            add(photo);
+        }
+    }
+
+    @Override
+    public Photo get(int index) {
+        return photos.get(index);
+    }
+
+    @Override
+    public int size() {
+        return photos.size();
+    }
+
+    /**
+     * Appends a photo unless one with the same path is already in the list.
+     *
+     * @param photo the photo to add
+     * @return true if the photo was added, false if its path is already in the list
+     */
+    @Override
+    public boolean add(Photo photo) {
+        String key = PhotoRegistry.normalizePath(photo.getFilePath());
+        if (slots.containsKey(key)) {
+            return false;
+        }
+        int position = photos.size();
+        photos.add(photo);
+        slots.put(key, new Slot(photo, position));
+        if (validPositions == position) {
+            validPositions++;
+        }
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, Photo photo) {
+        String key = PhotoRegistry.normalizePath(photo.getFilePath());
+        if (slots.containsKey(key)) {
+            throw new IllegalArgumentException("Already in the list: " + photo.getFilePath());
+        }
+        photos.add(index, photo);
+        slots.put(key, new Slot(photo, index));
+        validPositions = Math.min(validPositions, index);
+        modCount++;
+    }
+
+    @Override
+    public Photo set(int index, Photo photo) {
+        Photo old = photos.get(index);
+        String oldKey = PhotoRegistry.normalizePath(old.getFilePath());
+        String key = PhotoRegistry.normalizePath(photo.getFilePath());
+        if (!key.equals(oldKey) && slots.containsKey(key)) {
+            throw new IllegalArgumentException("Already in the list: " + photo.getFilePath());
+        }
+        slots.remove(oldKey);
+        slots.put(key, new Slot(photo, index));
+        photos.set(index, photo);
+        return old;
+    }
+
+    @Override
+    public Photo remove(int index) {
+        Photo photo = photos.remove(index);
+        slots.remove(PhotoRegistry.normalizePath(photo.getFilePath()));
+        validPositions = Math.min(validPositions, index);
+        modCount++;
+        return photo;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int index = indexOf(o);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return slotOf(o) != null;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        Slot slot = slotOf(o);
+        if (slot == null) {
+            return -1;
+        }
+        if (slot.position >= validPositions) {
+            reindex();
+        }
+        return slot.position;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    @Override
+    public void clear() {
+        photos.clear();
+        slots.clear();
+        validPositions = 0;
+        modCount++;
+    }
+
+    /**
+     * Gets the photo with a file path.
+     *
+     * @param filePath the file path or content URI
+     * @return the photo, or null if none in the list has the path
+     */
+    public Photo getByPath(String filePath) {
+        Slot slot = slots.get(PhotoRegistry.normalizePath(filePath));
+        return slot != null ? slot.photo : null;
+    }
+
+    private Slot slotOf(Object o) {
+        if (!(o instanceof Photo)) {
+            return null;
+        }
+        Slot slot = slots.get(PhotoRegistry.normalizePath(((Photo) o).getFilePath()));
+        return slot != null && slot.photo == o ? slot : null;
+    }
+
+    private void reindex() {
+        for (int i = validPositions; i < photos.size(); i++) {
+            slots.get(PhotoRegistry.normalizePath(photos.get(i).getFilePath())).position = i;
+        }
+        validPositions = photos.size();
+    }
+}
@@ -0,0 +1,184 @@
+package com.cs213.androidphotos.model;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Library-wide table of photos, keyed by normalized file path, so that every
+ * album holding a file shares one {@link Photo} with one set of tags.
+ * <p>
+ * Each registered photo gets a dense int id (ids of photos that leave the
+ * library are reused), which indexes can use instead of object identity. The
+ * number of albums holding each photo is counted, and a photo is dropped from
+ * the registry when it leaves the last one, so adding the file again later
+ * starts with no tags, as before.
+ * <p>
+ * Not thread-safe; AppDataManager guards it with its own lock.
+ */
+public class PhotoRegistry {
+
+    /**
+     * A registered photo and the number of albums holding it.
+     */
+    private static final class Entry {
+        private final Photo photo;
+        private int albums;
+
+        private Entry(Photo photo) {
+            this.photo = photo;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final ArrayDeque<Integer> freeIds = new ArrayDeque<>();
+    private int nextId;
+
+    /**
+     * Registers the photos of loaded albums. Albums loaded from storage that
+     * keeps a copy of a photo per album hold several Photo objects for one
+     * file; these are merged into the first one, taking the union of their
+     * tags, and the albums are updated to hold it.
+     *
+     * @param albums every album
+     * @return the number of photos changed by merging, which must be saved again
+     */
+    public int rebuild(List<Album> albums) {
+        entries.clear();
+        freeIds.clear();
+        nextId = 0;
+
+        int merged = 0;
+        for (Album album : albums) {
+            List<Photo> photos = album.getPhotos();
+            for (int i = 0; i < photos.size(); i++) {
+                Photo photo = photos.get(i);
+                Entry entry = entries.get(normalizePath(photo.getFilePath()));
+                if (entry == null) {
+                    entry = register(photo);
+                } else if (entry.photo != photo) {
+                    if (mergeTags(entry.photo, photo)) {
+                        merged++;
+                    }
+                    photos.set(i, entry.photo);
+                }
+                entry.albums++;
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Gets the registered photo for a file, or a new unregistered photo if no
+     * album holds the file. Call {@link #retain(Photo)} once the photo has been
+     * added to an album.
+     *
+     * @param filePath the file path or content URI
+     * @return the photo to add
+     */
+    public Photo obtain(String filePath) {
+        Entry entry = entries.get(normalizePath(filePath));
+        return entry != null ? entry.photo : new Photo(filePath);
+    }
+
+    /**
+     * Gets the registered photo for a file.
+     *
+     * @param filePath the file path or content URI
+     * @return the photo, or null if no album holds the file
+     */
+    public Photo get(String filePath) {
+        Entry entry = entries.get(normalizePath(filePath));
+        return entry != null ? entry.photo : null;
+    }
+
+    /**
+     * Records a photo being added to an album, registering it if it is the first.
+     *
+     * @param photo the photo, which must come from {@link #obtain(String)} or this registry
+     * @return true if the photo was not in any album before
+     */
+    public boolean retain(Photo photo) {
+        String key = normalizePath(photo.getFilePath());
+        Entry entry = entries.get(key);
+        boolean added = entry == null;
+        if (added) {
+            entry = register(photo);
+        }
+        entry.albums++;
+        return added;
+    }
+
+    /**
+     * Records a photo being removed from an album, dropping it from the
+     * registry and freeing its id if it was the last.
+     *
+     * @param photo the photo
+     * @return true if the photo is no longer in any album
+     */
+    public boolean release(Photo photo) {
+        String key = normalizePath(photo.getFilePath());
+        Entry entry = entries.get(key);
+        if (entry == null || entry.photo != photo || --entry.albums > 0) {
+            return false;
+        }
+        entries.remove(key);
+        freeIds.push(photo.getId());
+        return true;
+    }
+
+    /**
+     * Gets the number of registered photos.
+     *
+     * @return the number of distinct photos in at least one album
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Normalizes a file path or content URI for comparison. The URI scheme is
+     * case-insensitive and surrounding whitespace is ignored; the rest of the
+     * path is compared exactly.
+     *
+     * @param filePath the path or URI
+     * @return the normalized form
+     */
+    public static String normalizePath(String filePath) {
+        String path = filePath.trim();
+        int scheme = path.indexOf(':');
+        if (scheme > 0 && path.startsWith("//", scheme + 1)) {
+            // Paths are normally already normalized; only copy the ones that are not
+            for (int i = 0; i < scheme; i++) {
+                char c = path.charAt(i);
+                if (c >= 'A' && c <= 'Z') {
+                    return path.substring(0, scheme).toLowerCase(Locale.ROOT) + path.substring(scheme);
+                }
+            }
+        }
+        return path;
+    }
+
+    private Entry register(Photo photo) {
+        Integer free = freeIds.poll();
+        photo.setId(free != null ? free : nextId++);
+        Entry entry = new Entry(photo);
+        entries.put(normalizePath(photo.getFilePath()), entry);
+        return entry;
+    }
+
+    /**
+     * Adds the tags of a duplicate to the registered photo.
+     *
+     * @return true if the two had different tags, so one of the stored copies is out of date
+     */
+    private static boolean mergeTags(Photo target, Photo duplicate) {
+        boolean changed = false;
+        for (Tag tag : duplicate.getTags()) {
+            changed |= target.addTag(tag);
+        }
+        return changed || target.getTags().size() != duplicate.getTags().size();
+    }
+}
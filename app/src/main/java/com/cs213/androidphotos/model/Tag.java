@@ -1,12 +1,25 @@
 package com.cs213.androidphotos.model;
 
 import java.io.Serializable;
-import java.util.Objects;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * Represents a tag for a photo in the Photos application.
  * A tag consists of a type-value pair (e.g., "location" and "New York").
  * Only "person" and "location" are valid tag types.
+ * <p>
+ * Tags compare ignoring the case of the value. The lower-cased value is
+ * computed once, when the tag is created, so comparisons and lookups do not
+ * allocate.
+ * <p>
+ * Tags are immutable and interned: {@link #of(String, String)} returns the
+ * same instance for the same type and value for as long as it is in use, and
+ * deserialized tags are replaced by the interned instance. A library where
+ * thousands of photos are tagged "person=Mom" holds one such Tag.
  */
 public class Tag implements Serializable {
 
@@ -15,23 +28,48 @@ public class Tag implements Serializable {
     public static final String TYPE_PERSON = "person";
     public static final String TYPE_LOCATION = "location";
 
-    private String type;
-    private String value;
+    // Interned tags by type, then by exact value. The value strings are the
+    // tags' own, so an entry lasts as long as its tag is referenced.
+    private static final Map<String, WeakHashMap<String, WeakReference<Tag>>> POOL = new HashMap<>();
+
+    private final String type;
+    private final String value;
+    private final transient String normalizedValue;
+
+    private Tag(String type, String value) {
+        this.type = type;
+        this.value = value;
+        this.normalizedValue = normalize(value);
+    }
 
     /**
-     * Creates a new tag with the specified type and value.
+     * Gets the tag with the specified type and value.
      * Only "person" and "location" are valid tag types.
      *
      * @param type the tag type (must be "person" or "location")
      * @param value the tag value (e.g., "New York", "Alice")
+     * @return the interned tag
      * @throws IllegalArgumentException if type is not "person" or "location"
      */
-    public Tag(String type, String value) {
+    public static Tag of(String type, String value) {
         if (!isValidType(type)) {
             throw new IllegalArgumentException("Invalid tag type. Only 'person' or 'location' allowed.");
         }
-        this.type = type.toLowerCase();
-        this.value = value;
+        String normalizedType = normalizeType(type);
+        synchronized (POOL) {
+            WeakHashMap<String, WeakReference<Tag>> values = POOL.get(normalizedType);
+            if (values == null) {
+                values = new WeakHashMap<>();
+                POOL.put(normalizedType, values);
+            }
+            WeakReference<Tag> reference = values.get(value);
+            Tag tag = reference != null ? reference.get() : null;
+            if (tag == null) {
+                tag = new Tag(normalizedType, value);
+                values.put(tag.value, new WeakReference<>(tag));
+            }
+            return tag;
+        }
     }
 
     /**
@@ -53,12 +91,12 @@ public class Tag implements Serializable {
     }
 
     /**
-     * Sets the value of this tag.
+     * Gets the value of this tag in lower case, for comparisons that ignore case.
      *
-     * @param value the new value
+     * @return the normalized value
      */
-    public void setValue(String value) {
-        this.value = value;
+    public String getNormalizedValue() {
+        return normalizedValue;
     }
 
     /**
@@ -72,6 +110,33 @@ public class Tag implements Serializable {
                 TYPE_LOCATION.equalsIgnoreCase(type);
     }
 
+    /**
+     * Gets the canonical form of a tag type, without allocating.
+     *
+     * @param type the tag type, in any case
+     * @return {@link #TYPE_PERSON} or {@link #TYPE_LOCATION}, or the type in lower case if it is neither
+     */
+    public static String normalizeType(String type) {
+        if (TYPE_PERSON.equalsIgnoreCase(type)) {
+            return TYPE_PERSON;
+        }
+        if (TYPE_LOCATION.equalsIgnoreCase(type)) {
+            return TYPE_LOCATION;
+        }
+        return type.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Lower-cases a tag value for comparison. Returns the value itself if it
+     * is already in lower case.
+     *
+     * @param value the tag value
+     * @return the normalized value
+     */
+    public static String normalize(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
     /**
      * Checks if this tag equals another object.
      * Two tags are equal if they have the same type and value.
@@ -89,8 +154,8 @@ public class Tag implements Serializable {
         }
 
         Tag other = (Tag) obj;
-        return type.equalsIgnoreCase(other.type) &&
-                value.equalsIgnoreCase(other.value);
+        return type.equals(other.type) &&
+                normalizedValue.equals(other.normalizedValue);
     }
 
     /**
@@ -100,7 +165,11 @@ public class Tag implements Serializable {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(type.toLowerCase(), value.toLowerCase());
+        return 31 * type.hashCode() + normalizedValue.hashCode();
+    }
+
+    private Object readResolve() {
+        return of(type, value);
     }
 
     /**
@@ -0,0 +1,197 @@
+package com.cs213.androidphotos.model;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * The tags of a photo, in the order they were added, with at most one tag
+ * per type and value (ignoring case).
+ * <p>
+ * Lookups compare the tags' precomputed normalized values, so they do not
+ * allocate. Most photos have a handful of tags, which are simply scanned;
+ * once a photo has more than {@link #INDEX_THRESHOLD}, a hash index by type
+ * and normalized value is built so lookups stay constant-time.
+ * <p>
+ * Like {@link PhotoList}, {@link #add(Tag)} returns false for a duplicate,
+ * and the other methods that would add one throw {@link IllegalArgumentException}.
+ */
+public class TagList extends AbstractList<Tag> implements RandomAccess {
+
+    /** Number of tags above which lookups use a hash index instead of a scan. */
+    public static final int INDEX_THRESHOLD = 8;
+
+    private final ArrayList<Tag> tags = new ArrayList<>(2);
+    // Type -> normalized value -> tag, built once the list outgrows a scan
+    private Map<String, Map<String, Tag>> index;
+
+    @Override
+    public Tag get(int position) {
+        return tags.get(position);
+    }
+
+    @Override
+    public int size() {
+        return tags.size();
+    }
+
+    /**
+     * Finds the tag with a type and normalized value.
+     *
+     * @param type the canonical tag type, as returned by {@link Tag#normalizeType(String)}
+     * @param normalizedValue the value in lower case, as returned by {@link Tag#normalize(String)}
+     * @return the tag, or null if there is none
+     */
+    public Tag find(String type, String normalizedValue) {
+        if (index != null) {
+            Map<String, Tag> values = index.get(type);
+            return values != null ? values.get(normalizedValue) : null;
+        }
+        for (int i = 0; i < tags.size(); i++) {
+            Tag tag = tags.get(i);
+            if (tag.getType().equals(type) && tag.getNormalizedValue().equals(normalizedValue)) {
+                return tag;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends a tag unless one with the same type and value is already in the list.
+     *
+     * @param tag the tag to add
+     * @return true if the tag was added, false if a duplicate exists
+     */
+    @Override
+    public boolean add(Tag tag) {
+        if (find(tag.getType(), tag.getNormalizedValue()) != null) {
+            return false;
+        }
+        tags.add(tag);
+        indexTag(tag);
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int position, Tag tag) {
+        if (find(tag.getType(), tag.getNormalizedValue()) != null) {
+            throw new IllegalArgumentException("Duplicate tag: " + tag);
+        }
+        tags.add(position, tag);
+        indexTag(tag);
+        modCount++;
+    }
+
+    @Override
+    public Tag set(int position, Tag tag) {
+        Tag old = tags.get(position);
+        Tag existing = find(tag.getType(), tag.getNormalizedValue());
+        if (existing != null && existing != old) {
+            throw new IllegalArgumentException("Duplicate tag: " + tag);
+        }
+        tags.set(position, tag);
+        unindexTag(old);
+        indexTag(tag);
+        return old;
+    }
+
+    @Override
+    public Tag remove(int position) {
+        Tag tag = tags.remove(position);
+        unindexTag(tag);
+        modCount++;
+        return tag;
+    }
+
+    /**
+     * Removes the tag equal to the given one, that is, with the same type and
+     * value ignoring case.
+     *
+     * @param o the tag to remove
+     * @return true if a tag was removed
+     */
+    @Override
+    public boolean remove(Object o) {
+        int position = indexOf(o);
+        if (position < 0) {
+            return false;
+        }
+        remove(position);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof Tag)) {
+            return false;
+        }
+        Tag tag = (Tag) o;
+        return find(tag.getType(), tag.getNormalizedValue()) != null;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof Tag)) {
+            return -1;
+        }
+        Tag tag = (Tag) o;
+        Tag existing = find(tag.getType(), tag.getNormalizedValue());
+        if (existing == null) {
+            return -1;
+        }
+        for (int i = 0; i < tags.size(); i++) {
+            if (tags.get(i) == existing) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    @Override
+    public void clear() {
+        tags.clear();
+        index = null;
+        modCount++;
+    }
+
+    private void indexTag(Tag tag) {
+        if (index == null) {
+            if (tags.size() <= INDEX_THRESHOLD) {
+                return;
+            }
+            // Index everything, including the tag just added
+            index = new HashMap<>();
+            for (Tag existing : tags) {
+                putIndex(existing);
+            }
+            return;
+        }
+        putIndex(tag);
+    }
+
+    private void putIndex(Tag tag) {
+        Map<String, Tag> values = index.get(tag.getType());
+        if (values == null) {
+            values = new HashMap<>();
+            index.put(tag.getType(), values);
+        }
+        values.put(tag.getNormalizedValue(), tag);
+    }
+
+    private void unindexTag(Tag tag) {
+        if (index != null) {
+            Map<String, Tag> values = index.get(tag.getType());
+            if (values != null) {
+                values.remove(tag.getNormalizedValue());
+            }
+        }
+    }
+}
@@ -1,13 +1,12 @@
 package com.cs213.androidphotos.ui;
 
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -18,7 +17,6 @@ import android.widget.Toast;
 import android.widget.EditText;
 import android.database.Cursor;
 import android.provider.DocumentsContract;
-import android.content.ContentResolver;
 import android.widget.ImageButton;
 
 import androidx.annotation.Nullable;
@@ -29,19 +27,25 @@ import com.cs213.androidphotos.R;
 import com.cs213.androidphotos.model.Album;
 import com.cs213.androidphotos.model.Photo;
 import com.cs213.androidphotos.util.AppDataManager;
+import com.cs213.androidphotos.util.ImageLoader;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 public class AlbumActivity extends AppCompatActivity {
     private static final int PICK_PHOTO_REQUEST = 1;
+    // Decode thumbnails for this many photos past the last visible one
+    private static final int THUMBNAIL_PREFETCH_COUNT = 12;
 
     private AppDataManager dataManager;
+    private ImageLoader imageLoader;
     private Album album;
     private GridView photosGridView;
     private TextView albumNameTextView;
     private Button addPhotoButton, albumMenuButton, backButton;
     private ArrayAdapter<Photo> photoAdapter;
+    // A photo picked before the albums finished loading, added once they have
+    private String pendingPhotoUri;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -55,14 +59,8 @@ public class AlbumActivity extends AppCompatActivity {
             return;
         }
 
-        dataManager = AppDataManager.getInstance(this);
-        album = dataManager.getAlbum(albumName);
-
-        if (album == null) {
-            Toast.makeText(this, "Error: Album not found", Toast.LENGTH_SHORT).show();
-            finish();
-            return;
-        }
+        dataManager = AppDataManager.init(this);
+        imageLoader = ImageLoader.getInstance(this);
 
         albumNameTextView = findViewById(R.id.albumNameTextView);
         photosGridView = findViewById(R.id.photosGridView);
@@ -70,9 +68,20 @@ public class AlbumActivity extends AppCompatActivity {
         albumMenuButton = findViewById(R.id.albumMenuButton);
         backButton = findViewById(R.id.backButton);
 
-        albumNameTextView.setText(album.getName());
-
-        setupPhotoAdapter();
+        albumNameTextView.setText(albumName);
+
+        // After a process restart the albums may still be loading
+        addPhotoButton.setEnabled(false);
+        albumMenuButton.setEnabled(false);
+        if (dataManager.isReady()) {
+            showAlbum(albumName);
+        } else {
+            dataManager.whenReady(() -> {
+                if (!isDestroyed()) {
+                    showAlbum(albumName);
+                }
+            });
+        }
 
         addPhotoButton.setOnClickListener(v -> openPhotoSelector());
         albumMenuButton.setOnClickListener(v -> showAlbumOptionsDialog());
@@ -103,6 +112,31 @@ public class AlbumActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (dataManager != null && dataManager.isReady()) {
+            dataManager.flush();
+        }
+    }
+
+    private void showAlbum(String albumName) {
+        album = dataManager.getAlbum(albumName);
+        if (album == null) {
+            Toast.makeText(this, "Error: Album not found", Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+
+        setupPhotoAdapter();
+        addPhotoButton.setEnabled(true);
+        albumMenuButton.setEnabled(true);
+        if (pendingPhotoUri != null) {
+            addPickedPhoto(pendingPhotoUri);
+            pendingPhotoUri = null;
+        }
+    }
+
     private void setupPhotoAdapter() {
         photoAdapter = new ArrayAdapter<Photo>(this, R.layout.item_photo, album.getPhotos()) {
             @Override
@@ -119,25 +153,12 @@ public class AlbumActivity extends AppCompatActivity {
                 
                 Photo photo = getItem(position);
                 if (photo != null) {
-                    try {
-                        String filePath = photo.getFilePath();
-                        if (filePath.startsWith("content://")) {
-                            Uri photoUri = Uri.parse(filePath);
-                            imageView.setImageBitmap(getBitmapFromUri(photoUri));
-                        } else {
-                            Bitmap bitmap = BitmapFactory.decodeFile(photo.getFilePath());
-                            imageView.setImageBitmap(bitmap);
-                        }
-                        
-                        imageView.setOnClickListener(v -> {
-                            Toast.makeText(AlbumActivity.this, "Opening photo: " + photo.getFileName(), Toast.LENGTH_SHORT).show();
-                            openPhotoView(photo);
-                        });
-                        
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        imageView.setImageResource(android.R.drawable.ic_menu_gallery);
-                    }
+                    imageLoader.loadThumbnail(photo.getFilePath(), imageView);
+
+                    imageView.setOnClickListener(v -> {
+                        Toast.makeText(AlbumActivity.this, "Opening photo: " + photo.getFileName(), Toast.LENGTH_SHORT).show();
+                        openPhotoView(photo);
+                    });
                 }
     
                 return itemView;
@@ -145,6 +166,27 @@ public class AlbumActivity extends AppCompatActivity {
         };
     
         photosGridView.setAdapter(photoAdapter);
+        // Stop loading photos for cells scrolled off screen, and load the next rows ahead
+        photosGridView.setRecyclerListener(view -> imageLoader.cancel(view.findViewById(R.id.photoImageView)));
+        photosGridView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                prefetchThumbnails(firstVisibleItem + visibleItemCount);
+            }
+        });
+    }
+
+    private void prefetchThumbnails(int from) {
+        List<Photo> photos = album.getPhotos();
+        List<String> filePaths = new ArrayList<>();
+        for (int i = from; i < photos.size() && i < from + THUMBNAIL_PREFETCH_COUNT; i++) {
+            filePaths.add(photos.get(i).getFilePath());
+        }
+        imageLoader.prefetchThumbnails(filePaths);
     }
     
     private void showPhotoOptionsDialog(Photo photo) {
@@ -215,26 +257,24 @@ public class AlbumActivity extends AppCompatActivity {
                 }
 
                 String uriString = photoUri.toString();
-                Photo newPhoto = dataManager.addPhotoToAlbum(album, uriString);
-
-                if (newPhoto != null) {
-                    photoAdapter.notifyDataSetChanged();
-                    Toast.makeText(this, "Photo added successfully", Toast.LENGTH_SHORT).show();
+                if (album != null) {
+                    addPickedPhoto(uriString);
                 } else {
-                    Toast.makeText(this, "Failed to add photo", Toast.LENGTH_SHORT).show();
+                    pendingPhotoUri = uriString;
                 }
             }
         }
     }
 
-    private Bitmap getBitmapFromUri(Uri uri) throws IOException {
-        ContentResolver resolver = getContentResolver();
-        InputStream inputStream = resolver.openInputStream(uri);
-        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-        if (inputStream != null) {
-            inputStream.close();
+    private void addPickedPhoto(String uriString) {
+        Photo newPhoto = dataManager.addPhotoToAlbum(album, uriString);
+
+        if (newPhoto != null) {
+            photoAdapter.notifyDataSetChanged();
+            Toast.makeText(this, "Photo added successfully", Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(this, "Failed to add photo", Toast.LENGTH_SHORT).show();
         }
-        return bitmap;
     }
 
     private void openPhotoView(Photo photo) {
@@ -1,10 +1,6 @@
 package com.cs213.androidphotos.ui;
 
-import android.content.ContentResolver;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -27,14 +23,14 @@ import com.cs213.androidphotos.model.Album;
 import com.cs213.androidphotos.model.Photo;
 import com.cs213.androidphotos.model.Tag;
 import com.cs213.androidphotos.util.AppDataManager;
+import com.cs213.androidphotos.util.ImageLoader;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 public class PhotoActivity extends AppCompatActivity {
     private AppDataManager dataManager;
+    private ImageLoader imageLoader;
     private Album album;
     private Photo photo;
 
@@ -65,7 +61,36 @@ public class PhotoActivity extends AppCompatActivity {
             return;
         }
 
-        dataManager = AppDataManager.getInstance(this);
+        dataManager = AppDataManager.init(this);
+        imageLoader = ImageLoader.getInstance(this);
+
+        initializeViews();
+
+        setupButtonListeners();
+
+        // The photo can be shown from its path while the albums are still loading after a process restart
+        imageLoader.loadFitScreen(photoPath, photoImageView);
+        setActionsEnabled(false);
+        if (dataManager.isReady()) {
+            showPhoto(albumName, photoPath);
+        } else {
+            dataManager.whenReady(() -> {
+                if (!isDestroyed()) {
+                    showPhoto(albumName, photoPath);
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (dataManager != null && dataManager.isReady()) {
+            dataManager.flush();
+        }
+    }
+
+    private void showPhoto(String albumName, String photoPath) {
         album = dataManager.getAlbum(albumName);
 
         if (album == null) {
@@ -88,13 +113,18 @@ public class PhotoActivity extends AppCompatActivity {
             return;
         }
 
-        initializeViews();
-
         loadPhotoDetails();
 
         setupTagAdapter();
 
-        setupButtonListeners();
+        setActionsEnabled(true);
+    }
+
+    private void setActionsEnabled(boolean enabled) {
+        addTagButton.setEnabled(enabled);
+        slideshowButton.setEnabled(enabled);
+        moveToAlbumButton.setEnabled(enabled);
+        deletePhotoButton.setEnabled(enabled);
     }
 
     private void initializeViews() {
@@ -124,33 +154,9 @@ public class PhotoActivity extends AppCompatActivity {
     }
 
     private void loadPhotoDetails() {
-        try {
-            String filePath = photo.getFilePath();
-            if (filePath.startsWith("content://")) {
-                Uri photoUri = Uri.parse(filePath);
-                photoImageView.setImageBitmap(getBitmapFromUri(photoUri));
-            } else {
-                Bitmap bitmap = BitmapFactory.decodeFile(photo.getFilePath());
-                photoImageView.setImageBitmap(bitmap);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            photoImageView.setImageResource(android.R.drawable.ic_menu_gallery);
-        }
-
         captionTextView.setText(photo.getFileName());
     }
 
-    private Bitmap getBitmapFromUri(Uri uri) throws IOException {
-        ContentResolver resolver = getContentResolver();
-        InputStream inputStream = resolver.openInputStream(uri);
-        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-        if (inputStream != null) {
-            inputStream.close();
-        }
-        return bitmap;
-    }
-
     private void setupTagAdapter() {
         tagAdapter = new TagAdapter(photo.getTags());
         tagsRecyclerView.setLayoutManager(new LinearLayoutManager(this));
@@ -202,8 +208,6 @@ public class PhotoActivity extends AppCompatActivity {
         if (dataManager.addTagToPhoto(photo, tagType, tagValue)) {
             tagAdapter.notifyDataSetChanged();
             tagValueEditText.setText("");
-            // Save data to persist changes
-            dataManager.saveData();
             Toast.makeText(this, "Tag added successfully", Toast.LENGTH_SHORT).show();
         } else {
             Toast.makeText(this, "Failed to add tag or tag already exists", Toast.LENGTH_SHORT).show();
@@ -291,8 +295,6 @@ public class PhotoActivity extends AppCompatActivity {
                     Tag tagToDelete = photo.getTags().get(position);
                     if (dataManager.removeTagFromPhoto(photo, tagToDelete)) {
                         tagAdapter.notifyDataSetChanged();
-                        // Save data to persist changes
-                        dataManager.saveData();
                         Toast.makeText(this, "Tag deleted", Toast.LENGTH_SHORT).show();
                     } else {
                         Toast.makeText(this, "Failed to delete tag", Toast.LENGTH_SHORT).show();
@@ -1,10 +1,8 @@
 package com.cs213.androidphotos.ui;
 
-import android.content.ContentResolver;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.view.LayoutInflater;
@@ -14,6 +12,7 @@ import android.widget.ArrayAdapter;
 import android.widget.AutoCompleteTextView;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.Filter;
 import android.widget.ImageView;
 import android.widget.RadioButton;
 import android.widget.RadioGroup;
@@ -31,24 +30,51 @@ import com.cs213.androidphotos.R;
 import com.cs213.androidphotos.model.Album;
 import com.cs213.androidphotos.model.Photo;
 import com.cs213.androidphotos.util.AppDataManager;
+import com.cs213.androidphotos.util.ImageLoader;
+import com.cs213.androidphotos.util.SearchCursor;
+import com.cs213.androidphotos.util.TagQuery;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SearchActivity extends AppCompatActivity {
+    private static final long SUGGESTION_DELAY_MS = 150;
+    private static final int PAGE_SIZE = 60;
+    // Load the next page when the grid is within this many photos of the end
+    private static final int PREFETCH_DISTANCE = 30;
+    // Decode thumbnails for this many photos past the last visible one
+    private static final int THUMBNAIL_PREFETCH_COUNT = 12;
+
     private AppDataManager dataManager;
+    private ImageLoader imageLoader;
+
+    // Searches and suggestion lookups run here, one at a time, off the UI thread
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Future<?> pendingSearch;
+    private int searchGeneration;
+    private SearchCursor searchCursor;
+    // The query of the results shown, which may not all be loaded yet
+    private TagQuery resultsQuery;
+    private boolean pageLoading;
+    private TagValueSuggestions tag1Suggestions;
+    private TagValueSuggestions tag2Suggestions;
 
     private RadioGroup searchTypeRadioGroup;
     private RadioButton singleTagRadioButton;
     private RadioButton andRadioButton;
     private RadioButton orRadioButton;
+    private RadioButton expressionRadioButton;
 
     private Spinner tag1TypeSpinner;
     private Spinner tag2TypeSpinner;
     private AutoCompleteTextView tag1ValueAutoComplete;
     private AutoCompleteTextView tag2ValueAutoComplete;
+    private EditText queryEditText;
 
     private Button searchButton;
     private Button clearButton;
@@ -65,7 +91,8 @@ public class SearchActivity extends AppCompatActivity {
         setContentView(R.layout.activity_search);
 
         // Initialize data manager
-        dataManager = AppDataManager.getInstance(this);
+        dataManager = AppDataManager.init(this);
+        imageLoader = ImageLoader.getInstance(this);
 
         // Initialize views
         initializeViews();
@@ -75,6 +102,33 @@ public class SearchActivity extends AppCompatActivity {
 
         // Set up listeners
         setupListeners();
+
+        // After a process restart the albums may still be loading
+        if (!dataManager.isReady()) {
+            searchButton.setEnabled(false);
+            dataManager.whenReady(() -> {
+                if (!isDestroyed()) {
+                    searchButton.setEnabled(true);
+                    tag1Suggestions.refresh();
+                    tag2Suggestions.refresh();
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (dataManager.isReady()) {
+            dataManager.flush();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mainHandler.removeCallbacksAndMessages(null);
+        searchExecutor.shutdownNow();
     }
 
     private void initializeViews() {
@@ -82,11 +136,13 @@ public class SearchActivity extends AppCompatActivity {
         singleTagRadioButton = findViewById(R.id.singleTagRadioButton);
         andRadioButton = findViewById(R.id.andRadioButton);
         orRadioButton = findViewById(R.id.orRadioButton);
+        expressionRadioButton = findViewById(R.id.expressionRadioButton);
 
         tag1TypeSpinner = findViewById(R.id.tag1TypeSpinner);
         tag2TypeSpinner = findViewById(R.id.tag2TypeSpinner);
         tag1ValueAutoComplete = findViewById(R.id.tag1ValueAutoComplete);
         tag2ValueAutoComplete = findViewById(R.id.tag2ValueAutoComplete);
+        queryEditText = findViewById(R.id.queryEditText);
 
         searchButton = findViewById(R.id.searchButton);
         clearButton = findViewById(R.id.clearButton);
@@ -105,9 +161,24 @@ public class SearchActivity extends AppCompatActivity {
         tag1TypeSpinner.setAdapter(tagTypeAdapter);
         tag2TypeSpinner.setAdapter(tagTypeAdapter);
 
+        // One suggestion pipeline per value field, each with a single TextWatcher
+        tag1Suggestions = new TagValueSuggestions(tag1TypeSpinner, tag1ValueAutoComplete);
+        tag2Suggestions = new TagValueSuggestions(tag2TypeSpinner, tag2ValueAutoComplete);
+
         // Set up search results adapter
         searchResultAdapter = new SearchResultAdapter(searchResults);
         searchResultsRecyclerView.setAdapter(searchResultAdapter);
+        searchResultsRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                GridLayoutManager layoutManager = (GridLayoutManager) recyclerView.getLayoutManager();
+                int lastVisible = layoutManager.findLastVisibleItemPosition();
+                if (lastVisible >= searchResults.size() - PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+                prefetchThumbnails(lastVisible + 1);
+            }
+        });
 
         if (singleTagRadioButton.isChecked()) {
             tag2TypeSpinner.setEnabled(false);
@@ -129,13 +200,14 @@ public class SearchActivity extends AppCompatActivity {
                 tag2TypeSpinner.setEnabled(true);
                 tag2ValueAutoComplete.setEnabled(true);
             }
+            showQueryInput(checkedId == R.id.expressionRadioButton);
         });
 
         // Auto-complete
         tag1TypeSpinner.setOnItemSelectedListener(new android.widget.AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(android.widget.AdapterView<?> parent, View view, int position, long id) {
-                updateTagValueSuggestions(tag1TypeSpinner, tag1ValueAutoComplete);
+                tag1Suggestions.refresh();
             }
 
             @Override
@@ -145,7 +217,7 @@ public class SearchActivity extends AppCompatActivity {
         tag2TypeSpinner.setOnItemSelectedListener(new android.widget.AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(android.widget.AdapterView<?> parent, View view, int position, long id) {
-                updateTagValueSuggestions(tag2TypeSpinner, tag2ValueAutoComplete);
+                tag2Suggestions.refresh();
             }
 
             @Override
@@ -158,35 +230,33 @@ public class SearchActivity extends AppCompatActivity {
         backButton.setOnClickListener(v -> finish());
     }
 
-    private void updateTagValueSuggestions(Spinner tagTypeSpinner, AutoCompleteTextView tagValueAutoComplete) {
-        String tagType = tagTypeSpinner.getSelectedItem().toString();
-        List<String> suggestions = dataManager.getTagValueSuggestions(tagType, "");
-
-        ArrayAdapter<String> suggestionAdapter = new ArrayAdapter<>(
-                this, android.R.layout.simple_dropdown_item_1line, suggestions);
-        tagValueAutoComplete.setAdapter(suggestionAdapter);
-
-        // Add listener for auto-complete based on partial input
-        tagValueAutoComplete.addTextChangedListener(new TextWatcher() {
-            @Override
-            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
-
-            @Override
-            public void onTextChanged(CharSequence s, int start, int before, int count) {}
-
-            @Override
-            public void afterTextChanged(Editable s) {
-                String prefix = s.toString();
-                List<String> filteredSuggestions = dataManager.getTagValueSuggestions(tagType, prefix);
-                suggestionAdapter.clear();
-                suggestionAdapter.addAll(filteredSuggestions);
-                suggestionAdapter.notifyDataSetChanged();
-            }
-        });
+    // Swap the two tag pickers for a free-form query expression
+    private void showQueryInput(boolean show) {
+        int tagVisibility = show ? View.GONE : View.VISIBLE;
+        findViewById(R.id.tag1LabelTextView).setVisibility(tagVisibility);
+        findViewById(R.id.tag1Layout).setVisibility(tagVisibility);
+        findViewById(R.id.tag2LabelTextView).setVisibility(tagVisibility);
+        findViewById(R.id.tag2Layout).setVisibility(tagVisibility);
+        queryEditText.setVisibility(show ? View.VISIBLE : View.GONE);
     }
 
     private void performSearch() {
-        searchResults.clear();
+        if (expressionRadioButton.isChecked()) {
+            String expression = queryEditText.getText().toString().trim();
+            if (expression.isEmpty()) {
+                Toast.makeText(this, "Please enter a query", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            TagQuery query;
+            try {
+                query = TagQuery.parse(expression);
+            } catch (ParseException e) {
+                queryEditText.setError(e.getMessage());
+                return;
+            }
+            runSearch(query);
+            return;
+        }
 
         // Get search parameters
         String tagType1 = tag1TypeSpinner.getSelectedItem().toString();
@@ -199,7 +269,7 @@ public class SearchActivity extends AppCompatActivity {
 
         // Perform search based on selection
         if (singleTagRadioButton.isChecked()) {
-            searchResults.addAll(dataManager.searchByTagPrefix(tagType1, tagValue1));
+            runSearch(TagQuery.tag(tagType1, tagValue1));
         } else {
             String tagType2 = tag2TypeSpinner.getSelectedItem().toString();
             String tagValue2 = tag2ValueAutoComplete.getText().toString().trim();
@@ -210,39 +280,120 @@ public class SearchActivity extends AppCompatActivity {
             }
 
             if (andRadioButton.isChecked()) {
-                searchResults.addAll(dataManager.searchByTagConjunction(tagType1, tagValue1, tagType2, tagValue2));
+                runSearch(TagQuery.and(TagQuery.tag(tagType1, tagValue1), TagQuery.tag(tagType2, tagValue2)));
             } else if (orRadioButton.isChecked()) {
-                searchResults.addAll(dataManager.searchByTagDisjunction(tagType1, tagValue1, tagType2, tagValue2));
+                runSearch(TagQuery.or(TagQuery.tag(tagType1, tagValue1), TagQuery.tag(tagType2, tagValue2)));
             }
         }
+    }
 
+    /**
+     * Runs a search on the search executor, replacing any search still in
+     * progress, and shows the first page of results unless another search was
+     * started since. Later pages are loaded as the grid scrolls.
+     */
+    private void runSearch(TagQuery query) {
+        cancelSearch();
+        int request = searchGeneration;
+        pageLoading = true;
+        pendingSearch = searchExecutor.submit(() -> {
+            SearchCursor cursor = dataManager.openSearch(query, PAGE_SIZE, 0);
+            List<Photo> firstPage = cursor.nextPage();
+            boolean more = cursor.hasMore();
+            mainHandler.post(() -> {
+                if (request == searchGeneration) {
+                    pendingSearch = null;
+                    pageLoading = false;
+                    searchCursor = more ? cursor : null;
+                    resultsQuery = query;
+                    showSearchResults(firstPage, cursor.getCount());
+                }
+            });
+        });
+    }
+
+    private void prefetchThumbnails(int from) {
+        List<String> filePaths = new ArrayList<>();
+        for (int i = from; i < searchResults.size() && i < from + THUMBNAIL_PREFETCH_COUNT; i++) {
+            filePaths.add(searchResults.get(i).getFilePath());
+        }
+        imageLoader.prefetchThumbnails(filePaths);
+    }
+
+    private void loadNextPage() {
+        if (searchCursor == null || pageLoading) {
+            return;
+        }
+        SearchCursor cursor = searchCursor;
+        int request = searchGeneration;
+        pageLoading = true;
+        pendingSearch = searchExecutor.submit(() -> {
+            List<Photo> page = cursor.nextPage();
+            boolean more = cursor.hasMore();
+            mainHandler.post(() -> {
+                if (request == searchGeneration) {
+                    pendingSearch = null;
+                    pageLoading = false;
+                    appendSearchResults(page);
+                    if (!more) {
+                        searchCursor = null;
+                    }
+                }
+            });
+        });
+    }
+
+    private void cancelSearch() {
+        searchGeneration++;
+        searchCursor = null;
+        pageLoading = false;
+        if (pendingSearch != null) {
+            pendingSearch.cancel(true);
+            pendingSearch = null;
+        }
+    }
+
+    private void showSearchResults(List<Photo> firstPage, int count) {
+        searchResults.clear();
+        searchResults.addAll(firstPage);
         searchResultAdapter.notifyDataSetChanged();
+        searchResultsRecyclerView.scrollToPosition(0);
 
-        if (searchResults.isEmpty()) {
+        if (count == 0) {
             Toast.makeText(this, "No photos found matching your search criteria", Toast.LENGTH_SHORT).show();
         } else {
-            Toast.makeText(this, "Found " + searchResults.size() + " matching photos", Toast.LENGTH_SHORT).show();
+            Toast.makeText(this, "Found " + count + " matching photos", Toast.LENGTH_SHORT).show();
         }
     }
 
+    private void appendSearchResults(List<Photo> page) {
+        int start = searchResults.size();
+        searchResults.addAll(page);
+        searchResultAdapter.notifyItemRangeInserted(start, page.size());
+    }
+
     private void clearSearchFields() {
         singleTagRadioButton.setChecked(true);
         tag1ValueAutoComplete.setText("");
         tag2ValueAutoComplete.setText("");
+        queryEditText.setText("");
         tag2TypeSpinner.setEnabled(false);
         tag2ValueAutoComplete.setEnabled(false);
 
+        cancelSearch();
+        resultsQuery = null;
         searchResults.clear();
         searchResultAdapter.notifyDataSetChanged();
     }
 
-    // Create an album from search results
+    // Create an album from every search result, including pages not loaded yet
     private void createAlbumFromResults() {
-        if (searchResults.isEmpty()) {
+        if (resultsQuery == null || searchResults.isEmpty()) {
             Toast.makeText(this, "No search results to create an album from", Toast.LENGTH_SHORT).show();
             return;
         }
 
+        TagQuery query = resultsQuery;
         EditText input = new EditText(this);
         input.setHint("Enter album name");
 
@@ -252,7 +403,7 @@ public class SearchActivity extends AppCompatActivity {
                 .setPositiveButton("Create", (dialog, which) -> {
                     String albumName = input.getText().toString().trim();
                     if (!albumName.isEmpty()) {
-                        Album newAlbum = dataManager.createAlbumFromSearchResults(albumName, searchResults);
+                        Album newAlbum = dataManager.createAlbumFromSearch(albumName, query);
                         if (newAlbum != null) {
                             Toast.makeText(this, "Album created successfully", Toast.LENGTH_SHORT).show();
                         } else {
@@ -266,15 +417,103 @@ public class SearchActivity extends AppCompatActivity {
                 .show();
     }
 
-    // Method to handle loading bitmaps from content URIs
-    private Bitmap getBitmapFromUri(Uri uri) throws IOException {
-        ContentResolver resolver = getContentResolver();
-        InputStream inputStream = resolver.openInputStream(uri);
-        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-        if (inputStream != null) {
-            inputStream.close();
+    /**
+     * Looks up value suggestions for one tag field as the user types.
+     * Lookups are debounced, run on the search executor, and a newer lookup
+     * cancels an older one that has not finished.
+     */
+    private class TagValueSuggestions implements TextWatcher {
+        private final Spinner typeSpinner;
+        private final AutoCompleteTextView valueField;
+        private final SuggestionAdapter adapter;
+        private final Runnable lookup = this::lookup;
+        private Future<?> pendingLookup;
+        private int generation;
+
+        TagValueSuggestions(Spinner typeSpinner, AutoCompleteTextView valueField) {
+            this.typeSpinner = typeSpinner;
+            this.valueField = valueField;
+            this.adapter = new SuggestionAdapter();
+            valueField.setAdapter(adapter);
+            valueField.addTextChangedListener(this);
+        }
+
+        void refresh() {
+            mainHandler.removeCallbacks(lookup);
+            mainHandler.postDelayed(lookup, SUGGESTION_DELAY_MS);
+        }
+
+        private void lookup() {
+            if (pendingLookup != null) {
+                pendingLookup.cancel(true);
+            }
+            int request = ++generation;
+            String tagType = typeSpinner.getSelectedItem().toString();
+            String prefix = valueField.getText().toString().trim();
+            pendingLookup = searchExecutor.submit(() -> {
+                List<String> suggestions = dataManager.getTagValueSuggestions(tagType, prefix);
+                mainHandler.post(() -> deliver(request, suggestions));
+            });
+        }
+
+        private void deliver(int request, List<String> suggestions) {
+            if (request != generation) {
+                return;
+            }
+            pendingLookup = null;
+            adapter.setSuggestions(suggestions);
+            if (valueField.hasFocus() && valueField.isEnabled() && !suggestions.isEmpty()) {
+                valueField.showDropDown();
+            }
+        }
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            refresh();
+        }
+    }
+
+    /**
+     * Adapter for suggestions that are already filtered by the data manager,
+     * so its filter passes them through unchanged.
+     */
+    private class SuggestionAdapter extends ArrayAdapter<String> {
+        private final Filter passThrough = new Filter() {
+            @Override
+            protected FilterResults performFiltering(CharSequence constraint) {
+                FilterResults results = new FilterResults();
+                results.count = getCount();
+                return results;
+            }
+
+            @Override
+            protected void publishResults(CharSequence constraint, FilterResults results) {
+                notifyDataSetChanged();
+            }
+        };
+
+        SuggestionAdapter() {
+            super(SearchActivity.this, android.R.layout.simple_dropdown_item_1line, new ArrayList<>());
+        }
+
+        void setSuggestions(List<String> suggestions) {
+            setNotifyOnChange(false);
+            clear();
+            addAll(suggestions);
+            notifyDataSetChanged();
+        }
+
+        @NonNull
+        @Override
+        public Filter getFilter() {
+            return passThrough;
         }
-        return bitmap;
     }
 
     // Adapter for search results
@@ -296,23 +535,12 @@ public class SearchActivity extends AppCompatActivity {
         @Override
         public void onBindViewHolder(@NonNull SearchResultViewHolder holder, int position) {
             Photo photo = photos.get(position);
+            imageLoader.loadThumbnail(photo.getFilePath(), holder.imageView);
+        }
 
-            try {
-                String filePath = photo.getFilePath();
-                if (filePath.startsWith("content://")) {
-                    // Handle content URI images
-                    Uri photoUri = Uri.parse(filePath);
-                    holder.imageView.setImageBitmap(getBitmapFromUri(photoUri));
-                } else {
-                    // Handle local file images
-                    Bitmap bitmap = BitmapFactory.decodeFile(photo.getFilePath());
-                    holder.imageView.setImageBitmap(bitmap);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                holder.imageView.setImageResource(android.R.drawable.ic_menu_gallery);
-                Toast.makeText(SearchActivity.this, "Error loading image: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-            }
+        @Override
+        public void onViewRecycled(@NonNull SearchResultViewHolder holder) {
+            imageLoader.cancel(holder.imageView);
         }
 
         @Override
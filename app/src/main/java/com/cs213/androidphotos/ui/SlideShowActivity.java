@@ -1,9 +1,5 @@
 package com.cs213.androidphotos.ui;
 
-import android.content.ContentResolver;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -22,13 +18,13 @@ import com.cs213.androidphotos.model.Album;
 import com.cs213.androidphotos.model.Photo;
 import com.cs213.androidphotos.model.Tag;
 import com.cs213.androidphotos.util.AppDataManager;
+import com.cs213.androidphotos.util.ImageLoader;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.List;
 
 public class SlideShowActivity extends AppCompatActivity {
     private AppDataManager dataManager;
+    private ImageLoader imageLoader;
     private Album album;
     private List<Photo> photos;
 
@@ -54,21 +50,8 @@ public class SlideShowActivity extends AppCompatActivity {
         }
 
         // Initialize data
-        dataManager = AppDataManager.getInstance(this);
-        album = dataManager.getAlbum(albumName);
-
-        if (album == null) {
-            Toast.makeText(this, "Error: Album not found", Toast.LENGTH_SHORT).show();
-            finish();
-            return;
-        }
-
-        photos = album.getPhotos();
-        if (photos.isEmpty()) {
-            Toast.makeText(this, "Error: Album is empty", Toast.LENGTH_SHORT).show();
-            finish();
-            return;
-        }
+        dataManager = AppDataManager.init(this);
+        imageLoader = ImageLoader.getInstance(this);
 
         // Initialize views
         slideshowViewPager = findViewById(R.id.slideshowViewPager);
@@ -80,18 +63,17 @@ public class SlideShowActivity extends AppCompatActivity {
         // Set title
         slideshowTitleTextView.setText(getString(R.string.slideshow_title) + " - " + albumName);
 
-        // Set up ViewPager
-        PhotoPagerAdapter adapter = new PhotoPagerAdapter();
-        slideshowViewPager.setAdapter(adapter);
-
-        // Start at the selected photo if provided
-        if (currentPhotoPath != null) {
-            for (int i = 0; i < photos.size(); i++) {
-                if (photos.get(i).getFilePath().equals(currentPhotoPath)) {
-                    slideshowViewPager.setCurrentItem(i, false);
-                    break;
+        // After a process restart the albums may still be loading
+        previousButton.setEnabled(false);
+        nextButton.setEnabled(false);
+        if (dataManager.isReady()) {
+            showAlbum(albumName, currentPhotoPath);
+        } else {
+            dataManager.whenReady(() -> {
+                if (!isDestroyed()) {
+                    showAlbum(albumName, currentPhotoPath);
                 }
-            }
+            });
         }
 
         // Set up button listeners
@@ -121,6 +103,41 @@ public class SlideShowActivity extends AppCompatActivity {
         });
     }
 
+    private void showAlbum(String albumName, String currentPhotoPath) {
+        album = dataManager.getAlbum(albumName);
+
+        if (album == null) {
+            Toast.makeText(this, "Error: Album not found", Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+
+        photos = album.getPhotos();
+        if (photos.isEmpty()) {
+            Toast.makeText(this, "Error: Album is empty", Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+
+        // Set up ViewPager
+        PhotoPagerAdapter adapter = new PhotoPagerAdapter();
+        slideshowViewPager.setAdapter(adapter);
+
+        // Start at the selected photo if provided
+        int start = 0;
+        if (currentPhotoPath != null) {
+            for (int i = 0; i < photos.size(); i++) {
+                if (photos.get(i).getFilePath().equals(currentPhotoPath)) {
+                    start = i;
+                    break;
+                }
+            }
+        }
+        slideshowViewPager.setCurrentItem(start, false);
+        previousButton.setEnabled(start > 0);
+        nextButton.setEnabled(start < photos.size() - 1);
+    }
+
     private class PhotoPagerAdapter extends androidx.recyclerview.widget.RecyclerView.Adapter<PhotoPagerAdapter.PhotoViewHolder> {
 
         @NonNull
@@ -135,19 +152,7 @@ public class SlideShowActivity extends AppCompatActivity {
         public void onBindViewHolder(@NonNull PhotoViewHolder holder, int position) {
             Photo photo = photos.get(position);
             
-            try {
-                String filePath = photo.getFilePath();
-                if (filePath.startsWith("content://")) {
-                    Uri photoUri = Uri.parse(filePath);
-                    holder.photoImageView.setImageBitmap(getBitmapFromUri(photoUri));
-                } else {
-                    Bitmap bitmap = BitmapFactory.decodeFile(photo.getFilePath());
-                    holder.photoImageView.setImageBitmap(bitmap);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                holder.photoImageView.setImageResource(android.R.drawable.ic_menu_gallery);
-            }
+            imageLoader.loadFitScreen(photo.getFilePath(), holder.photoImageView);
             
             // Build caption text with filename and tags
             StringBuilder captionBuilder = new StringBuilder(photo.getFileName());
@@ -167,6 +172,11 @@ public class SlideShowActivity extends AppCompatActivity {
             holder.captionTextView.setText(captionBuilder.toString());
         }
 
+        @Override
+        public void onViewRecycled(@NonNull PhotoViewHolder holder) {
+            imageLoader.cancel(holder.photoImageView);
+        }
+
         @Override
         public int getItemCount() {
             return photos.size();
@@ -183,14 +193,4 @@ public class SlideShowActivity extends AppCompatActivity {
             }
         }
     }
-
-    private Bitmap getBitmapFromUri(Uri uri) throws IOException {
-        ContentResolver resolver = getContentResolver();
-        InputStream inputStream = resolver.openInputStream(uri);
-        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-        if (inputStream != null) {
-            inputStream.close();
-        }
-        return bitmap;
-    }
 }
\ No newline at end of file
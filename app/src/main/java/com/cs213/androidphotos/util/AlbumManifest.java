@@ -0,0 +1,95 @@
+package com.cs213.androidphotos.util;
+
+import android.util.Log;
+
+import com.cs213.androidphotos.model.AlbumSummary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small file listing a summary of every album (name, photo count, cover photo
+ * and last-modified time). It is rewritten alongside every save and can be
+ * read in a few milliseconds, long before the full album data has loaded.
+ */
+public class AlbumManifest {
+    private static final String TAG = "AlbumManifest";
+    private static final int MAGIC = 0x50414C4D; // "PALM"
+    private static final int VERSION = 1;
+
+    private final File file;
+
+    /**
+     * Creates a manifest backed by the given file.
+     *
+     * @param file the manifest file
+     */
+    public AlbumManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the album summaries.
+     *
+     * @return the summaries in album order, or an empty list if there is no readable manifest
+     */
+    public List<AlbumSummary> read() {
+        List<AlbumSummary> summaries = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Unrecognized manifest header, ignoring manifest");
+                return summaries;
+            }
+            int count = SnapshotCodec.readVarint(in);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                int photoCount = SnapshotCodec.readVarint(in);
+                String coverPath = in.readUTF();
+                long lastModified = in.readLong();
+                summaries.add(new AlbumSummary(name, photoCount, coverPath.isEmpty() ? null : coverPath, lastModified));
+            }
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "No manifest found");
+        } catch (IOException e) {
+            Log.w(TAG, "Error reading manifest: " + e.getMessage());
+            summaries.clear();
+        }
+        return summaries;
+    }
+
+    /**
+     * Replaces the manifest atomically with the given summaries.
+     *
+     * @param summaries the summaries in album order
+     * @throws IOException if writing fails
+     */
+    public void write(List<AlbumSummary> summaries) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            SnapshotCodec.writeVarint(out, summaries.size());
+            for (AlbumSummary summary : summaries) {
+                out.writeUTF(summary.getName());
+                SnapshotCodec.writeVarint(out, summary.getPhotoCount());
+                out.writeUTF(summary.getCoverPath() == null ? "" : summary.getCoverPath());
+                out.writeLong(summary.getLastModified());
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace manifest " + file);
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.cs213.androidphotos.util;
+
+import android.util.Log;
+
+import com.cs213.androidphotos.model.Album;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores the album data as one {@link SnapshotCodec} file per album, plus a
+ * small index and the {@link MutationJournal}.
+ * <p>
+ * A checkpoint writes only the albums that changed since the last one. Shard
+ * files are never overwritten: each checkpoint writes changed albums under new
+ * names, then atomically replaces the index that lists the shard file of every
+ * album, then resets the journal to the new generation. A crash at any point
+ * leaves either the old index with its shards and journal, or the new index
+ * with a stale journal that is ignored. Files the index no longer refers to
+ * are deleted after the checkpoint.
+ * <p>
+ * Photos shared by several albums are stored in each album's shard, so after
+ * loading, each album has its own copy; AppDataManager merges the copies
+ * through its {@link com.cs213.androidphotos.model.PhotoRegistry}.
+ * <p>
+ * Shards only split up the writes; {@link #load(Set)} still reads them all.
+ * <p>
+ * All methods are called from the AppDataManager writer thread.
+ */
+public class AlbumShardStore implements LibraryStore {
+    private static final String TAG = "AlbumShardStore";
+    private static final String SHARD_DIR = "albums";
+    private static final String INDEX_FILE = "index.bin";
+    private static final String SHARD_PREFIX = "album-";
+    private static final String JOURNAL_FILE = "photos_app_data.journal";
+    private static final String SNAPSHOT_FILE = "photos_app_data.bin";
+    private static final String LEGACY_DATA_FILE = "photos_app_data.ser";
+    private static final int INDEX_MAGIC = 0x50494458; // "PIDX"
+    private static final int INDEX_VERSION = 1;
+
+    private final File filesDir;
+    private final File shardDir;
+    private final MutationJournal journal;
+    private final Map<Album, String> shardFiles = new IdentityHashMap<>();
+    private long generation;
+    private boolean migrated;
+
+    /**
+     * The albums changed since the last checkpoint, encoded and ready to be
+     * written. Prepared while the albums are locked, committed afterwards.
+     */
+    private static final class ShardCheckpoint implements Checkpoint {
+        private final long generation;
+        private final List<String> shardNames;
+        private final Map<String, byte[]> newShards;
+        private final Map<Album, String> assignments;
+
+        private ShardCheckpoint(long generation, List<String> shardNames, Map<String, byte[]> newShards,
+                           Map<Album, String> assignments) {
+            this.generation = generation;
+            this.shardNames = shardNames;
+            this.newShards = newShards;
+            this.assignments = assignments;
+        }
+
+        @Override
+        public Set<Album> getWrittenAlbums() {
+            Set<Album> written = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Map.Entry<Album, String> entry : assignments.entrySet()) {
+                if (newShards.containsKey(entry.getValue())) {
+                    written.add(entry.getKey());
+                }
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Creates a store in the given directory.
+     *
+     * @param filesDir the app's private files directory
+     */
+    public AlbumShardStore(File filesDir) {
+        this.filesDir = filesDir;
+        this.shardDir = new File(filesDir, SHARD_DIR);
+        this.journal = new MutationJournal(new File(filesDir, JOURNAL_FILE));
+    }
+
+    /**
+     * Loads every album and replays the journal on top of them. Data saved
+     * by earlier versions (a single snapshot file, or Java serialization) is
+     * loaded too, and {@link #needsFullCheckpoint()} is then true so that it
+     * gets rewritten as shards and the old file is deleted. An old file that
+     * cannot be read is left in place.
+     *
+     * @param changed receives the albums changed by the journal replay, which
+     *                must be written at the next checkpoint
+     * @return the loaded albums
+     * @throws IOException if the index, any shard or an old data file cannot be read
+     */
+    @Override
+    public List<Album> load(Set<Album> changed) throws IOException {
+        List<Album> albums;
+        File indexFile = new File(shardDir, INDEX_FILE);
+
+        if (indexFile.exists()) {
+            albums = loadShards(indexFile);
+        } else if (new File(filesDir, SNAPSHOT_FILE).exists()) {
+            albums = loadSnapshot(new File(filesDir, SNAPSHOT_FILE));
+            migrated = true;
+        } else if (new File(filesDir, LEGACY_DATA_FILE).exists()) {
+            albums = loadLegacyData(new File(filesDir, LEGACY_DATA_FILE));
+            migrated = true;
+        } else {
+            Log.d(TAG, "No saved data found");
+            albums = new ArrayList<>();
+        }
+
+        List<Mutation> tail = journal.read(generation);
+        for (Mutation mutation : tail) {
+            mutation.applyTo(albums, changed);
+        }
+        Log.d(TAG, "Loaded " + albums.size() + " albums, replayed " + tail.size() + " journaled changes");
+        return albums;
+    }
+
+    /**
+     * Loads the albums listed in the index. Fails if any of them cannot be
+     * read, as a checkpoint written without them would delete their shards.
+     */
+    private List<Album> loadShards(File indexFile) throws IOException {
+        List<Album> albums = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        long indexGeneration;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                throw new IOException("Unrecognized index header");
+            }
+            indexGeneration = in.readLong();
+            int count = SnapshotCodec.readVarint(in);
+            for (int i = 0; i < count; i++) {
+                names.add(in.readUTF());
+            }
+        } catch (IOException e) {
+            throw new IOException("Error reading album index: " + e.getMessage(), e);
+        }
+
+        Map<Album, String> files = new IdentityHashMap<>();
+        for (String name : names) {
+            try (FileInputStream in = new FileInputStream(new File(shardDir, name))) {
+                for (Album album : SnapshotCodec.read(in).albums) {
+                    albums.add(album);
+                    files.put(album, name);
+                }
+            } catch (IOException e) {
+                throw new IOException("Error loading album shard " + name + ": " + e.getMessage(), e);
+            }
+        }
+        generation = indexGeneration;
+        shardFiles.putAll(files);
+        return albums;
+    }
+
+    private List<Album> loadSnapshot(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            SnapshotCodec.Snapshot snapshot = SnapshotCodec.read(in);
+            generation = snapshot.generation;
+            return snapshot.albums;
+        } catch (IOException e) {
+            throw new IOException("Error loading snapshot: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Loads data saved with Java serialization by earlier versions of the app.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Album> loadLegacyData(File file) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+            List<Album> albums = (List<Album>) in.readObject();
+            if (albums == null) {
+                throw new IOException("No album list");
+            }
+            try {
+                generation = in.readLong();
+            } catch (EOFException e) {
+                // Written before the journal existed
+            }
+            return albums;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Error loading legacy data: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Checks whether every album must be rewritten, because the data was
+     * loaded from an older format.
+     *
+     * @return true if the next checkpoint must include every album
+     */
+    @Override
+    public boolean needsFullCheckpoint() {
+        return migrated;
+    }
+
+    /**
+     * Checks whether the journal should be replaced by a checkpoint, because
+     * it has grown large or old, or can no longer be appended to.
+     *
+     * @return true if the next save should be a checkpoint
+     */
+    @Override
+    public boolean needsCheckpoint() {
+        return journal.needsCompaction();
+    }
+
+    /**
+     * Appends mutations to the journal.
+     *
+     * @param mutations the mutations to append, in order
+     * @throws IOException if writing fails; the next save must then be a checkpoint
+     */
+    @Override
+    public void append(List<Mutation> mutations) throws IOException {
+        journal.append(mutations);
+    }
+
+    /**
+     * Encodes the changed albums for a checkpoint. Does no file I/O.
+     */
+    @Override
+    public Checkpoint prepareCheckpoint(List<Album> albums, Set<Album> dirty) throws IOException {
+        long nextGeneration = generation + 1;
+        List<String> shardNames = new ArrayList<>(albums.size());
+        Map<String, byte[]> newShards = new LinkedHashMap<>();
+        Map<Album, String> assignments = new IdentityHashMap<>();
+
+        for (int i = 0; i < albums.size(); i++) {
+            Album album = albums.get(i);
+            String name = shardFiles.get(album);
+            if (name == null || dirty.contains(album)) {
+                name = SHARD_PREFIX + nextGeneration + "-" + i + ".bin";
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                SnapshotCodec.write(Collections.singletonList(album), nextGeneration, bytes);
+                newShards.put(name, bytes.toByteArray());
+            }
+            shardNames.add(name);
+            assignments.put(album, name);
+        }
+        return new ShardCheckpoint(nextGeneration, shardNames, newShards, assignments);
+    }
+
+    /**
+     * Writes a prepared checkpoint: the new shards, then the index, then an
+     * empty journal. Finally deletes shard files and older data files that are
+     * no longer referenced.
+     *
+     * @param checkpoint the checkpoint to write
+     * @throws IOException if writing fails; the previous checkpoint and journal remain valid
+     *         unless the new index was written, in which case its stale journal is ignored
+     */
+    @Override
+    public void commit(Checkpoint prepared) throws IOException {
+        ShardCheckpoint checkpoint = (ShardCheckpoint) prepared;
+        if (!shardDir.isDirectory() && !shardDir.mkdirs()) {
+            throw new IOException("Could not create " + shardDir);
+        }
+
+        for (Map.Entry<String, byte[]> shard : checkpoint.newShards.entrySet()) {
+            writeShard(shard.getKey(), shard.getValue());
+        }
+        writeIndex(checkpoint);
+
+        // The new index is live from here on, so a retry after a journal failure
+        // must not reuse its generation and overwrite the shards it lists
+        generation = checkpoint.generation;
+        shardFiles.clear();
+        shardFiles.putAll(checkpoint.assignments);
+        journal.reset(checkpoint.generation);
+        Log.d(TAG, "Checkpoint " + generation + " wrote " + checkpoint.newShards.size()
+                + " of " + checkpoint.shardNames.size() + " albums");
+
+        deleteUnreferencedFiles(new HashSet<>(checkpoint.shardNames));
+    }
+
+    /**
+     * Writes a shard to a temporary file and renames it into place, so a shard
+     * file is either complete or absent.
+     */
+    private void writeShard(String name, byte[] bytes) throws IOException {
+        File shardFile = new File(shardDir, name);
+        File temp = new File(shardDir, name + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(bytes);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(shardFile)) {
+            throw new IOException("Could not replace " + shardFile);
+        }
+    }
+
+    private void writeIndex(ShardCheckpoint checkpoint) throws IOException {
+        File indexFile = new File(shardDir, INDEX_FILE);
+        File temp = new File(shardDir, INDEX_FILE + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(checkpoint.generation);
+            SnapshotCodec.writeVarint(out, checkpoint.shardNames.size());
+            for (String name : checkpoint.shardNames) {
+                out.writeUTF(name);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!temp.renameTo(indexFile)) {
+            throw new IOException("Could not replace " + indexFile);
+        }
+    }
+
+    private void deleteUnreferencedFiles(Set<String> referenced) {
+        File[] files = shardDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SHARD_PREFIX) && !referenced.contains(name) && !file.delete()) {
+                    Log.w(TAG, "Could not delete " + file);
+                }
+            }
+        }
+
+        if (migrated) {
+            // The data is now safely stored as shards
+            new File(filesDir, SNAPSHOT_FILE).delete();
+            new File(filesDir, LEGACY_DATA_FILE).delete();
+            migrated = false;
+        }
+    }
+
+    /**
+     * Checks whether there is any data in this store or in an older file format.
+     *
+     * @return true if there is data to load
+     */
+    public boolean hasData() {
+        return new File(shardDir, INDEX_FILE).exists()
+                || new File(filesDir, SNAPSHOT_FILE).exists()
+                || new File(filesDir, LEGACY_DATA_FILE).exists();
+    }
+
+    /**
+     * Deletes every file of this store and of older file formats, once the
+     * data has been migrated to another store.
+     */
+    public void deleteAllFiles() {
+        File[] files = shardDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        shardDir.delete();
+        new File(filesDir, JOURNAL_FILE).delete();
+        new File(filesDir, SNAPSHOT_FILE).delete();
+        new File(filesDir, LEGACY_DATA_FILE).delete();
+    }
+}
@@ -2,35 +2,142 @@ package com.cs213.androidphotos.util;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import com.cs213.androidphotos.R;
 import com.cs213.androidphotos.model.Album;
+import com.cs213.androidphotos.model.AlbumSummary;
 import com.cs213.androidphotos.model.Photo;
+import com.cs213.androidphotos.model.PhotoRegistry;
 import com.cs213.androidphotos.model.Tag;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Central data manager for the Photos application.
  * Handles data persistence, album management, and search functionality.
+ * <p>
+ * Persistence is write-behind: mutators record a {@link Mutation}, and a single
+ * background writer appends bursts of them to the {@link MutationJournal} after
+ * a short delay. Once the journal grows large or old, the writer compacts it
+ * with a checkpoint that rewrites only the albums changed since the last one
+ * (see {@link AlbumShardStore}). Call {@link #flush()} when the app leaves the
+ * foreground. Setting the {@code use_sqlite_storage} resource selects
+ * {@link SqliteLibraryStore} instead, which writes each mutation straight to
+ * its rows.
+ * <p>
+ * Loading also happens on the writer thread. {@link #init(Context)} starts it
+ * without blocking; {@link #whenReady(Runnable)} and {@link #getReadyFuture()}
+ * report when the albums can be used. Until then {@link #getAlbumSummaries()}
+ * serves the small {@link AlbumManifest} read when the instance is created.
+ * The load reads every album, not only those opened: the tag index, the photo
+ * registry and journal replay each need the whole library, so albums are not
+ * loaded on demand. The manifest is what keeps the home screen independent of
+ * the library size.
+ * If the saved data cannot be read, the data manager starts with no albums and
+ * {@link #isReadOnly()} is true: changes are kept in memory but never saved,
+ * so the files that failed to load are not overwritten.
+ * <p>
+ * Every album holding a file shares one {@link Photo}, handed out by a
+ * {@link PhotoRegistry}. Tag searches use a {@link TagIndex} that is built on
+ * load and kept up to date by the mutators.
+ * <p>
+ * The data manager is safe to use from any thread. A read-write lock lets
+ * searches, suggestion lookups and the writer encoding a checkpoint read the
+ * albums at the same time, while mutators get exclusive access.
+ * {@link #getAlbums()} returns a copy; the albums and photos themselves are
+ * live and should only be changed through this class.
+ * <p>
+ * {@link #batch(Batch)} applies several changes as one: other threads see
+ * none of them until all are done, the writer is handed them together, and
+ * if one fails the others are undone.
  */
 public class AppDataManager {
     private static final String TAG = "AppDataManager";
-    private static final String DATA_FILE = "photos_app_data.ser";
+    private static final String MANIFEST_FILE = "album_manifest.bin";
+    private static final long SAVE_DELAY_MS = 500;
+    // The save delay doubles after each failed save, up to SAVE_DELAY_MS << MAX_SAVE_BACKOFF
+    private static final int MAX_SAVE_BACKOFF = 7;
+
+    private static final int SEARCH_CACHE_SIZE = 32;
+
+    /** Number of autocomplete suggestions returned by default. */
+    public static final int SUGGESTION_LIMIT = TagValueTrie.CACHED_COUNT;
 
     private static AppDataManager instance;
 
+    /**
+     * Changes applied together by {@link #batch(Batch)}.
+     */
+    public interface Batch {
+        /**
+         * Makes the changes, calling the data manager's mutators. Throwing
+         * undoes every change made so far.
+         *
+         * @param tx the data manager
+         */
+        void apply(AppDataManager tx);
+    }
+
+    /**
+     * What a batch in progress has changed, so it can be committed or undone.
+     */
+    private static final class BatchState {
+        private final List<Mutation> mutations = new ArrayList<>();
+        private final Set<Album> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final Map<Album, Long> lastModified = new IdentityHashMap<>();
+        private final Deque<Runnable> undo = new ArrayDeque<>();
+        private boolean snapshotRequested;
+    }
+
     private List<Album> albums;
+    private final Map<String, Album> albumsByName = new HashMap<>();
     private Context context;
 
+    // Readers (searches, the writer encoding a checkpoint) share the model; mutators need it exclusively
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService writer;
+    private final CompletableFuture<AppDataManager> ready = new CompletableFuture<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LibraryStore store;
+    private final AlbumManifest manifest;
+    private final List<AlbumSummary> manifestSummaries;
+    private final List<Mutation> pendingMutations = new ArrayList<>();
+    private final Set<Album> dirtyAlbums = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final PhotoRegistry photoRegistry = new PhotoRegistry();
+    private final TagIndex tagIndex = new TagIndex();
+    private final SearchCache searchCache = new SearchCache(SEARCH_CACHE_SIZE);
+    private long dataGeneration;
+    private ScheduledFuture<?> pendingSave;
+    // Failed saves in a row; only changed by the writer thread
+    private volatile int saveFailures;
+    // Set when loading failed, so that nothing is written over the saved data
+    private volatile boolean readOnly;
+    private boolean snapshotRequested;
+    private boolean checkpointRequested;
+    // Set while the thread holding the write lock runs a batch
+    private BatchState activeBatch;
+
     /**
      * Private constructor for singleton pattern.
      *
@@ -39,29 +146,129 @@ public class AppDataManager {
     private AppDataManager(Context context) {
         this.context = context.getApplicationContext();
         this.albums = new ArrayList<>();
-        loadData();
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AppDataManager-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.store = this.context.getResources().getBoolean(R.bool.use_sqlite_storage)
+                ? new SqliteLibraryStore(this.context)
+                : new AlbumShardStore(this.context.getFilesDir());
+        this.manifest = new AlbumManifest(new File(this.context.getFilesDir(), MANIFEST_FILE));
+        this.manifestSummaries = manifest.read();
+        writer.execute(() -> {
+            try {
+                loadData();
+            } finally {
+                ready.complete(this);
+            }
+        });
     }
 
     /**
-     * Gets the singleton instance of the data manager.
+     * Creates the singleton instance if needed and starts loading data in the
+     * background. Returns immediately; the albums must not be used until the
+     * data manager is ready.
      *
      * @param context application context
-     * @return the singleton instance
+     * @return the singleton instance, possibly still loading
      */
-    public static synchronized AppDataManager getInstance(Context context) {
+    public static synchronized AppDataManager init(Context context) {
         if (instance == null) {
             instance = new AppDataManager(context);
         }
         return instance;
     }
 
+    /**
+     * Gets the singleton instance of the data manager, waiting for the data
+     * to finish loading if necessary. Activities should use
+     * {@link #init(Context)} and {@link #whenReady(Runnable)} instead, so the
+     * main thread never waits for the load.
+     *
+     * @param context application context
+     * @return the singleton instance
+     */
+    public static AppDataManager getInstance(Context context) {
+        return init(context).getReadyFuture().join();
+    }
+
+    /**
+     * Checks whether the data has finished loading.
+     *
+     * @return true if the albums can be used
+     */
+    public boolean isReady() {
+        return ready.isDone();
+    }
+
+    /**
+     * Checks whether the saved data failed to load. Changes are then never
+     * saved, so the data can still be recovered.
+     *
+     * @return true if nothing will be saved
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Gets a future that completes with this instance once the data has loaded.
+     *
+     * @return the readiness future
+     */
+    public CompletableFuture<AppDataManager> getReadyFuture() {
+        return ready;
+    }
+
+    /**
+     * Runs a callback on the main thread once the data has loaded.
+     * The callback is always posted, even if the data is already loaded.
+     *
+     * @param callback the callback to run
+     */
+    public void whenReady(Runnable callback) {
+        ready.thenRun(() -> mainHandler.post(callback));
+    }
+
     /**
      * Gets all albums.
      *
-     * @return list of albums
+     * @return a copy of the list of albums, in order
      */
     public List<Album> getAlbums() {
-        return albums;
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(albums);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets a summary of every album. Before the data has loaded, the summaries
+     * come from the album manifest saved last time.
+     *
+     * @return list of album summaries, in album order
+     */
+    public List<AlbumSummary> getAlbumSummaries() {
+        if (!isReady()) {
+            return manifestSummaries;
+        }
+        return summarizeAlbums();
+    }
+
+    private List<AlbumSummary> summarizeAlbums() {
+        lock.readLock().lock();
+        try {
+            List<AlbumSummary> summaries = new ArrayList<>(albums.size());
+            for (Album album : albums) {
+                summaries.add(AlbumSummary.of(album));
+            }
+            return summaries;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -71,12 +278,12 @@ public class AppDataManager {
      * @return the album, or null if not found
      */
     public Album getAlbum(String name) {
-        for (Album album : albums) {
-            if (album.getName().equals(name)) {
-                return album;
-            }
+        lock.readLock().lock();
+        try {
+            return albumsByName.get(name);
+        } finally {
+            lock.readLock().unlock();
         }
-        return null;
     }
 
     /**
@@ -86,15 +293,25 @@ public class AppDataManager {
      * @return the new album, or null if an album with this name already exists
      */
     public Album createAlbum(String name) {
-        // Check if album already exists
-        if (getAlbum(name) != null) {
-            return null;
-        }
+        lock.writeLock().lock();
+        try {
+            // Check if album already exists
+            if (getAlbum(name) != null) {
+                return null;
+            }
 
-        Album newAlbum = new Album(name);
-        albums.add(newAlbum);
-        saveData();
-        return newAlbum;
+            Album newAlbum = new Album(name);
+            albums.add(newAlbum);
+            albumsByName.put(name, newAlbum);
+            onRollback(() -> {
+                albums.remove(newAlbum);
+                albumsByName.remove(name);
+            });
+            record(Mutation.albumCreated(name), newAlbum);
+            return newAlbum;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -104,11 +321,29 @@ public class AppDataManager {
      * @return true if the album was deleted, false if it wasn't found
      */
     public boolean deleteAlbum(Album album) {
-        boolean removed = albums.remove(album);
-        if (removed) {
-            saveData();
+        lock.writeLock().lock();
+        try {
+            int position = albums.indexOf(album);
+            if (position < 0) {
+                return false;
+            }
+            albums.remove(position);
+            albumsByName.remove(album.getName());
+            for (Photo photo : album.getPhotos()) {
+                release(photo);
+            }
+            onRollback(() -> {
+                albums.add(position, album);
+                albumsByName.put(album.getName(), album);
+                for (Photo photo : album.getPhotos()) {
+                    retain(photo);
+                }
+            });
+            record(Mutation.albumDeleted(album.getName()));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
         }
-        return removed;
     }
 
     /**
@@ -119,30 +354,56 @@ public class AppDataManager {
      * @return true if renamed successfully, false if another album already has this name
      */
     public boolean renameAlbum(Album album, String newName) {
-        // Check if an album with newName already exists
-        if (getAlbum(newName) != null) {
-            return false;
-        }
+        lock.writeLock().lock();
+        try {
+            // Check if an album with newName already exists
+            if (getAlbum(newName) != null) {
+                return false;
+            }
 
-        album.setName(newName);
-        saveData();
-        return true;
+            String oldName = album.getName();
+            album.setName(newName);
+            if (albumsByName.remove(oldName, album)) {
+                albumsByName.put(newName, album);
+            }
+            onRollback(() -> {
+                album.setName(oldName);
+                if (albumsByName.remove(newName, album)) {
+                    albumsByName.put(oldName, album);
+                }
+            });
+            record(Mutation.albumRenamed(oldName, newName), album);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
-     * Adds a photo to an album.
+     * Adds a photo to an album. If another album already holds the file, its
+     * photo, with its tags, is shared.
      *
      * @param album the album to add the photo to
      * @param filePath the file path of the photo
      * @return the added photo, or null if the photo already exists in the album
      */
     public Photo addPhotoToAlbum(Album album, String filePath) {
-        Photo photo = new Photo(filePath);
-        if (album.addPhoto(photo)) {
-            saveData();
-            return photo;
+        lock.writeLock().lock();
+        try {
+            Photo photo = photoRegistry.obtain(filePath);
+            // Journal an album already holding the photo, so replay shares it and its tags
+            Album owner = photoRegistry.get(filePath) != null ? findOwner(photo) : null;
+            if (album.addPhoto(photo)) {
+                retain(photo);
+                onRollback(() -> removeAdded(album, photo));
+                record(Mutation.photoAdded(album.getName(), photo.getFilePath(),
+                        owner != null ? owner.getName() : null), album);
+                return photo;
+            }
+            return null;
+        } finally {
+            lock.writeLock().unlock();
         }
-        return null;
     }
 
     /**
@@ -153,11 +414,23 @@ public class AppDataManager {
      * @return true if removed, false otherwise
      */
     public boolean removePhotoFromAlbum(Album album, Photo photo) {
-        if (album.removePhoto(photo)) {
-            saveData();
-            return true;
+        lock.writeLock().lock();
+        try {
+            int position = album.getPhotos().indexOf(photo);
+            if (position >= 0) {
+                album.getPhotos().remove(position);
+                release(photo);
+                onRollback(() -> {
+                    album.getPhotos().add(position, photo);
+                    retain(photo);
+                });
+                record(Mutation.photoRemoved(album.getName(), photo.getFilePath()), album);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
         }
-        return false;
     }
 
     /**
@@ -169,22 +442,28 @@ public class AppDataManager {
      * @return true if moved successfully, false otherwise
      */
     public boolean movePhoto(Album fromAlbum, Album toAlbum, Photo photo) {
-        if (fromAlbum.equals(toAlbum)) {
-            return false;
-        }
-
-        if (fromAlbum.removePhoto(photo) && toAlbum.addPhoto(photo)) {
-            saveData();
-            return true;
-        }
+        lock.writeLock().lock();
+        try {
+            if (fromAlbum.equals(toAlbum)) {
+                return false;
+            }
 
-        // If the move failed but the photo was removed from the source album,
-        // add it back to maintain consistency
-        if (!fromAlbum.getPhotos().contains(photo)) {
-            fromAlbum.addPhoto(photo);
+            // A move leaves the photo in the same number of albums, so the tag index is unaffected
+            int position = fromAlbum.getPhotos().indexOf(photo);
+            if (position >= 0 && toAlbum.addPhoto(photo)) {
+                fromAlbum.getPhotos().remove(position);
+                onRollback(() -> {
+                    toAlbum.removePhoto(photo);
+                    fromAlbum.getPhotos().add(position, photo);
+                });
+                record(Mutation.photoMoved(fromAlbum.getName(), toAlbum.getName(), photo.getFilePath()),
+                        fromAlbum, toAlbum);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
         }
-
-        return false;
     }
 
     /**
@@ -196,16 +475,26 @@ public class AppDataManager {
      * @return true if the tag was added, false if it already exists
      */
     public boolean addTagToPhoto(Photo photo, String type, String value) {
-        if (!Tag.isValidType(type)) {
-            return false;
-        }
+        lock.writeLock().lock();
+        try {
+            if (!Tag.isValidType(type)) {
+                return false;
+            }
 
-        Tag tag = new Tag(type, value);
-        if (photo.addTag(tag)) {
-            saveData();
-            return true;
+            Tag tag = Tag.of(type, value);
+            if (photo.addTag(tag)) {
+                tagIndex.addTag(photo, tag);
+                onRollback(() -> {
+                    photo.removeTag(tag);
+                    tagIndex.removeTag(photo, tag);
+                });
+                recordTagChange(photo, tag, true);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
         }
-        return false;
     }
 
     /**
@@ -216,11 +505,23 @@ public class AppDataManager {
      * @return true if removed, false otherwise
      */
     public boolean removeTagFromPhoto(Photo photo, Tag tag) {
-        if (photo.removeTag(tag)) {
-            saveData();
-            return true;
+        lock.writeLock().lock();
+        try {
+            int position = photo.getTags().indexOf(tag);
+            if (position >= 0) {
+                Tag removed = photo.getTags().remove(position);
+                tagIndex.removeTag(photo, removed);
+                onRollback(() -> {
+                    photo.getTags().add(position, removed);
+                    tagIndex.addTag(photo, removed);
+                });
+                recordTagChange(photo, tag, false);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
         }
-        return false;
     }
 
     // SEARCH FUNCTIONALITY
@@ -234,26 +535,15 @@ public class AppDataManager {
      * @return list of matching photos
      */
     public List<Photo> searchByTagPrefix(String type, String valuePrefix) {
-        List<Photo> results = new ArrayList<>();
-        Set<Photo> uniqueResults = new HashSet<>();
-
-        if (!Tag.isValidType(type)) {
-            return results;
-        }
-
-        for (Album album : albums) {
-            for (Photo photo : album.getPhotos()) {
-                for (Tag tag : photo.getTags()) {
-                    if (tag.getType().equalsIgnoreCase(type) &&
-                            tag.getValue().toLowerCase().startsWith(valuePrefix.toLowerCase())) {
-                        uniqueResults.add(photo);
-                    }
-                }
+        lock.readLock().lock();
+        try {
+            if (!Tag.isValidType(type)) {
+                return new ArrayList<>();
             }
+            return search(TagQuery.tag(type, valuePrefix));
+        } finally {
+            lock.readLock().unlock();
         }
-
-        results.addAll(uniqueResults);
-        return results;
     }
 
     /**
@@ -266,23 +556,15 @@ public class AppDataManager {
      * @return list of photos that match both tag conditions
      */
     public List<Photo> searchByTagConjunction(String type1, String value1, String type2, String value2) {
-        List<Photo> results = new ArrayList<>();
-
-        if (!Tag.isValidType(type1) || !Tag.isValidType(type2)) {
-            return results;
-        }
-
-        for (Album album : albums) {
-            for (Photo photo : album.getPhotos()) {
-                if (matchesTagPrefix(photo, type1, value1) && matchesTagPrefix(photo, type2, value2)) {
-                    if (!results.contains(photo)) {
-                        results.add(photo);
-                    }
-                }
+        lock.readLock().lock();
+        try {
+            if (!Tag.isValidType(type1) || !Tag.isValidType(type2)) {
+                return new ArrayList<>();
             }
+            return search(TagQuery.and(TagQuery.tag(type1, value1), TagQuery.tag(type2, value2)));
+        } finally {
+            lock.readLock().unlock();
         }
-
-        return results;
     }
 
     /**
@@ -295,70 +577,167 @@ public class AppDataManager {
      * @return list of photos that match either tag condition
      */
     public List<Photo> searchByTagDisjunction(String type1, String value1, String type2, String value2) {
-        List<Photo> results = new ArrayList<>();
-        Set<Photo> uniqueResults = new HashSet<>();
+        lock.readLock().lock();
+        try {
+            if (!Tag.isValidType(type1) || !Tag.isValidType(type2)) {
+                return new ArrayList<>();
+            }
+            return search(TagQuery.or(TagQuery.tag(type1, value1), TagQuery.tag(type2, value2)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-        if (!Tag.isValidType(type1) || !Tag.isValidType(type2)) {
-            return results;
+    /**
+     * Searches for photos matching a boolean tag query, such as one parsed
+     * with {@link TagQuery#parse(String)}.
+     *
+     * @param query the query
+     * @return list of matching photos
+     */
+    public List<Photo> search(TagQuery query) {
+        lock.readLock().lock();
+        try {
+            return tagIndex.photos(evaluate(query));
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        for (Album album : albums) {
-            for (Photo photo : album.getPhotos()) {
-                if (matchesTagPrefix(photo, type1, value1) || matchesTagPrefix(photo, type2, value2)) {
-                    uniqueResults.add(photo);
+    /**
+     * Opens a search whose results are read a page at a time, so the first
+     * photos can be shown without looking up every match.
+     *
+     * @param query the query
+     * @param pageSize the number of photos per page
+     * @param limit the maximum number of photos to return, or 0 for no limit
+     * @return a cursor over the matching photos
+     */
+    public SearchCursor openSearch(TagQuery query, int pageSize, int limit) {
+        lock.readLock().lock();
+        try {
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("Page size must be positive");
+            }
+            return new SearchCursor(this, query, pageSize, limit, evaluate(query), dataGeneration);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the next page of a cursor, re-running its query first if the
+     * library changed since it last ran. A re-run starts over on the new
+     * results without the photos already returned; its position among the
+     * old ids means nothing once ids have been reused.
+     */
+    List<Photo> readPage(SearchCursor cursor, int count) {
+        lock.readLock().lock();
+        try {
+            List<Photo> page = new ArrayList<>(Math.max(count, 0));
+            if (cursor.generation != dataGeneration) {
+                RoaringBitmap ids = evaluate(cursor.query);
+                RoaringBitmap unread = ids.copy();
+                for (Photo photo : cursor.returnedPhotos) {
+                    if (tagIndex.photo(photo.getId()) == photo) {
+                        unread.remove(photo.getId());
+                    }
                 }
+                cursor.ids = unread;
+                cursor.count = ids.cardinality();
+                cursor.position = 0;
+                cursor.generation = dataGeneration;
+            }
+            int id = cursor.ids.nextValue(cursor.position);
+            while (id >= 0 && page.size() < count) {
+                Photo photo = tagIndex.photo(id);
+                page.add(photo);
+                cursor.returnedPhotos.add(photo);
+                cursor.position = id + 1;
+                id = cursor.ids.nextValue(cursor.position);
             }
+            if (id < 0) {
+                cursor.position = Integer.MAX_VALUE;
+            }
+            cursor.returned += page.size();
+            return page;
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        results.addAll(uniqueResults);
+    /**
+     * Gets the ids of the photos matching a query, from the result cache when
+     * the library has not changed since it was last run.
+     */
+    private RoaringBitmap evaluate(TagQuery query) {
+        String key = query.toString();
+        RoaringBitmap results = searchCache.get(key, dataGeneration);
+        if (results == null) {
+            results = query.evaluate(tagIndex);
+            searchCache.put(key, dataGeneration, results);
+        }
         return results;
     }
 
     /**
-     * Checks if a photo has a tag matching the given type and value prefix.
+     * Gets the number of searches answered from the result cache.
      *
-     * @param photo the photo to check
-     * @param type the tag type
-     * @param valuePrefix the tag value prefix
-     * @return true if the photo has a matching tag
+     * @return the cache hit count
      */
-    private boolean matchesTagPrefix(Photo photo, String type, String valuePrefix) {
-        for (Tag tag : photo.getTags()) {
-            if (tag.getType().equalsIgnoreCase(type) &&
-                    tag.getValue().toLowerCase().startsWith(valuePrefix.toLowerCase())) {
-                return true;
-            }
+    public long getSearchCacheHits() {
+        lock.readLock().lock();
+        try {
+            return searchCache.getHitCount();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of searches that were not in the result cache.
+     *
+     * @return the cache miss count
+     */
+    public long getSearchCacheMisses() {
+        lock.readLock().lock();
+        try {
+            return searchCache.getMissCount();
+        } finally {
+            lock.readLock().unlock();
         }
-        return false;
     }
 
     /**
-     * Gets all possible values for a specific tag type that match a prefix.
+     * Gets the most used values for a specific tag type that match a prefix.
      * Used for auto-completion suggestions.
      *
      * @param type the tag type
      * @param prefix the prefix to match
-     * @return list of matching tag values
+     * @return up to {@link #SUGGESTION_LIMIT} matching tag values, most used first
      */
     public List<String> getTagValueSuggestions(String type, String prefix) {
-        Set<String> uniqueValues = new HashSet<>();
-
-        if (!Tag.isValidType(type)) {
-            return new ArrayList<>();
-        }
+        return getTagValueSuggestions(type, prefix, SUGGESTION_LIMIT);
+    }
 
-        for (Album album : albums) {
-            for (Photo photo : album.getPhotos()) {
-                for (Tag tag : photo.getTags()) {
-                    if (tag.getType().equalsIgnoreCase(type) &&
-                            tag.getValue().toLowerCase().startsWith(prefix.toLowerCase())) {
-                        uniqueValues.add(tag.getValue());
-                    }
-                }
+    /**
+     * Gets the most used values for a specific tag type that match a prefix.
+     *
+     * @param type the tag type
+     * @param prefix the prefix to match
+     * @param limit the maximum number of values to return
+     * @return the matching tag values, used by the most photos first
+     */
+    public List<String> getTagValueSuggestions(String type, String prefix, int limit) {
+        lock.readLock().lock();
+        try {
+            if (!Tag.isValidType(type)) {
+                return new ArrayList<>();
             }
+            return tagIndex.suggestValues(type, prefix, limit);
+        } finally {
+            lock.readLock().unlock();
         }
-
-        return new ArrayList<>(uniqueValues);
     }
 
     /**
@@ -369,52 +748,415 @@ public class AppDataManager {
      * @return the new album, or null if an album with this name already exists
      */
     public Album createAlbumFromSearchResults(String name, List<Photo> photos) {
-        Album album = createAlbum(name);
-        if (album == null) {
-            return null;
+        Album[] created = new Album[1];
+        batch(tx -> {
+            Album album = createAlbum(name);
+            if (album == null) {
+                return;
+            }
+
+            Map<Photo, Album> owners = new IdentityHashMap<>();
+            for (Album existing : albums) {
+                if (existing == album) {
+                    continue;
+                }
+                for (Photo photo : existing.getPhotos()) {
+                    owners.putIfAbsent(photo, existing);
+                }
+            }
+
+            for (Photo result : photos) {
+                // Results normally are the registered photos already
+                Photo registered = photoRegistry.get(result.getFilePath());
+                Photo photo = registered != null ? registered : result;
+                if (album.addPhoto(photo)) {
+                    retain(photo);
+                    onRollback(() -> removeAdded(album, photo));
+                    Album owner = owners.get(photo);
+                    record(Mutation.photoAdded(name, photo.getFilePath(), owner != null ? owner.getName() : null), album);
+                }
+            }
+            created[0] = album;
+        });
+        return created[0];
+    }
+
+    /**
+     * Creates a new album from every photo matching a query, rather than only
+     * the pages read so far from a {@link SearchCursor}.
+     *
+     * @param name the name for the new album
+     * @param query the search query
+     * @return the new album, or null if an album with this name already exists
+     */
+    public Album createAlbumFromSearch(String name, TagQuery query) {
+        lock.writeLock().lock();
+        try {
+            return createAlbumFromSearchResults(name, tagIndex.photos(evaluate(query)));
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
+
+    /**
+     * Applies several changes as one. The changes are made while holding the
+     * write lock, so other threads see none of them until all are done, and
+     * they are handed to the background writer together when the batch ends.
+     * If the batch throws, every change it made is undone and the exception
+     * is rethrown. A batch started inside another joins it.
+     * <p>
+     * For example, to tag every photo in an album:
+     * <pre>
+     * dataManager.batch(tx -&gt; {
+     *     for (Photo photo : album.getPhotos()) {
+     *         tx.addTagToPhoto(photo, Tag.TYPE_LOCATION, "Paris");
+     *     }
+     * });
+     * </pre>
+     *
+     * @param work the changes to make
+     */
+    public void batch(Batch work) {
+        lock.writeLock().lock();
+        try {
+            if (activeBatch != null) {
+                work.apply(this);
+                return;
+            }
 
-        for (Photo photo : photos) {
-            album.addPhoto(photo);
+            BatchState state = new BatchState();
+            activeBatch = state;
+            boolean completed = false;
+            try {
+                work.apply(this);
+                completed = true;
+            } finally {
+                activeBatch = null;
+                if (completed) {
+                    commit(state);
+                } else {
+                    rollback(state);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
-        saveData();
-        return album;
+    /**
+     * Gets the photo for a file, as shared by every album holding it.
+     *
+     * @param filePath the file path of the photo
+     * @return the photo, or null if no album holds the file
+     */
+    public Photo getPhoto(String filePath) {
+        lock.readLock().lock();
+        try {
+            return photoRegistry.get(filePath);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Album findOwner(Photo photo) {
+        for (Album album : albums) {
+            if (album.containsPhoto(photo)) {
+                return album;
+            }
+        }
+        return null;
+    }
+
+    private void retain(Photo photo) {
+        if (photoRegistry.retain(photo)) {
+            tagIndex.addPhoto(photo);
+        }
+    }
+
+    private void release(Photo photo) {
+        if (photoRegistry.release(photo)) {
+            tagIndex.removePhoto(photo);
+        }
+    }
+
+    private void removeAdded(Album album, Photo photo) {
+        album.removePhoto(photo);
+        release(photo);
+    }
+
+    /**
+     * Remembers how to undo a change, if a batch is in progress.
+     */
+    private void onRollback(Runnable undo) {
+        if (activeBatch != null) {
+            activeBatch.undo.push(undo);
+        }
+    }
+
+    private void commit(BatchState state) {
+        dirtyAlbums.addAll(state.changed);
+        pendingMutations.addAll(state.mutations);
+        snapshotRequested |= state.snapshotRequested;
+        if (isDirty()) {
+            scheduleSave();
+        }
+    }
+
+    private void rollback(BatchState state) {
+        while (!state.undo.isEmpty()) {
+            state.undo.pop().run();
+        }
+        for (Map.Entry<Album, Long> entry : state.lastModified.entrySet()) {
+            entry.getKey().setLastModified(entry.getValue());
+        }
+        // Searches made during the batch may have cached results that included the undone changes
+        dataGeneration++;
+        Log.d(TAG, "Rolled back " + state.mutations.size() + " changes");
+    }
+
+    /**
+     * Journals a tag change once for every album holding the photo, since each
+     * album's shard stores its own copy of the photo.
+     */
+    private void recordTagChange(Photo photo, Tag tag, boolean added) {
+        boolean found = false;
+        for (Album album : albums) {
+            if (album.containsPhoto(photo)) {
+                String albumName = album.getName();
+                record(added
+                        ? Mutation.tagAdded(albumName, photo.getFilePath(), tag.getType(), tag.getValue())
+                        : Mutation.tagRemoved(albumName, photo.getFilePath(), tag.getType(), tag.getValue()),
+                        album);
+                found = true;
+            }
+        }
+        if (!found) {
+            // Not in any album, so there is nothing to replay it against; snapshot instead
+            saveData();
+        }
     }
 
     // DATA PERSISTENCE
 
     /**
-     * Saves all application data to a file.
+     * Queues a mutation for the journal and schedules a background save.
+     * Mutations recorded before the scheduled save runs are written together.
+     * During a batch, the mutation is held back until the batch ends.
+     * Called with the write lock held.
+     *
+     * @param mutation the change that was made
+     * @param changed the albums whose contents changed; they are rewritten at the next checkpoint
+     */
+    private void record(Mutation mutation, Album... changed) {
+        // Invalidates cached search results
+        dataGeneration++;
+        for (Album album : changed) {
+            if (activeBatch != null) {
+                activeBatch.lastModified.putIfAbsent(album, album.getLastModified());
+            }
+            album.setLastModified(mutation.getTime());
+        }
+        if (activeBatch != null) {
+            activeBatch.mutations.add(mutation);
+            Collections.addAll(activeBatch.changed, changed);
+            return;
+        }
+        Collections.addAll(dirtyAlbums, changed);
+        pendingMutations.add(mutation);
+        scheduleSave();
+    }
+
+    /**
+     * Requests a checkpoint that rewrites every album on the next background save.
+     * Only needed after changing model objects directly rather than through this class.
      */
     public void saveData() {
+        lock.writeLock().lock();
+        try {
+            if (activeBatch != null) {
+                activeBatch.snapshotRequested = true;
+                return;
+            }
+            snapshotRequested = true;
+            scheduleSave();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void scheduleSave() {
+        if (pendingSave == null) {
+            long delay = SAVE_DELAY_MS << Math.min(saveFailures, MAX_SAVE_BACKOFF);
+            pendingSave = writer.schedule(this::writeData, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean isDirty() {
+        return snapshotRequested || checkpointRequested || !pendingMutations.isEmpty();
+    }
+
+    /**
+     * Writes any unsaved changes immediately and waits for the write to finish.
+     * Intended for onStop, so nothing is lost if the process is killed.
+     */
+    public void flush() {
+        Future<?> save;
+        lock.writeLock().lock();
+        try {
+            if (!isDirty()) {
+                return;
+            }
+            if (pendingSave != null) {
+                pendingSave.cancel(false);
+                pendingSave = null;
+            }
+            save = writer.submit(this::writeData);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            save.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error flushing data: " + e.getCause());
+        }
+    }
+
+    /**
+     * Persists pending changes. Runs on the writer thread, which is the only
+     * thread that touches the data files.
+     * <p>
+     * Normally the pending mutations are appended to the journal. When the
+     * journal needs compaction, or a checkpoint was requested, the changed
+     * albums are encoded instead and written as a checkpoint. The pending
+     * changes are taken under the write lock, which is then downgraded to the
+     * read lock for encoding: mutators cannot change the albums mid-encode,
+     * but searches carry on. The album manifest is rewritten on every save;
+     * it holds one entry per album, so this stays cheap. A failed save puts
+     * the changed albums into the next checkpoint and is retried, waiting twice
+     * as long after each failure in a row.
+     */
+    private void writeData() {
+        List<Mutation> batch = null;
+        Set<Album> dirty = null;
+        LibraryStore.Checkpoint checkpoint = null;
+        List<AlbumSummary> summaries = null;
+
+        lock.writeLock().lock();
         try {
-            FileOutputStream fileOut = context.openFileOutput(DATA_FILE, Context.MODE_PRIVATE);
-            ObjectOutputStream out = new ObjectOutputStream(fileOut);
-            out.writeObject(albums);
-            out.close();
-            fileOut.close();
-            Log.d(TAG, "Data saved successfully");
+            pendingSave = null;
+            if (!isDirty()) {
+                return;
+            }
+            if (readOnly) {
+                // The saved data failed to load, and anything written now could replace it
+                pendingMutations.clear();
+                dirtyAlbums.clear();
+                snapshotRequested = false;
+                checkpointRequested = false;
+                return;
+            }
+            if (snapshotRequested || checkpointRequested || store.needsCheckpoint()) {
+                dirty = Collections.newSetFromMap(new IdentityHashMap<>());
+                dirty.addAll(snapshotRequested ? albums : dirtyAlbums);
+                dirtyAlbums.clear();
+                snapshotRequested = false;
+                checkpointRequested = false;
+            } else {
+                batch = new ArrayList<>(pendingMutations);
+            }
+            pendingMutations.clear();
+            lock.readLock().lock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            if (dirty != null) {
+                checkpoint = store.prepareCheckpoint(albums, dirty);
+            }
+            summaries = summarizeAlbums();
+        } catch (IOException e) {
+            Log.e(TAG, "Error encoding data: " + e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (summaries == null) {
+            // The pending mutations were dropped, so the albums must still go into a checkpoint
+            lock.writeLock().lock();
+            try {
+                dirtyAlbums.addAll(dirty);
+                checkpointRequested = true;
+                saveFailures++;
+                scheduleSave();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return;
+        }
+
+        try {
+            if (checkpoint != null) {
+                store.commit(checkpoint);
+            } else {
+                store.append(batch);
+                Log.d(TAG, "Saved " + batch.size() + " changes");
+            }
+            manifest.write(summaries);
+            saveFailures = 0;
         } catch (IOException e) {
+            // The saved changes may be incomplete now, so the changed albums must go into a checkpoint
             Log.e(TAG, "Error saving data: " + e.getMessage());
+            lock.writeLock().lock();
+            try {
+                if (checkpoint != null) {
+                    dirtyAlbums.addAll(checkpoint.getWrittenAlbums());
+                }
+                checkpointRequested = true;
+                saveFailures++;
+                scheduleSave();
+            } finally {
+                lock.writeLock().unlock();
+            }
         }
     }
 
     /**
-     * Loads application data from a file.
+     * Loads every album and replays the journal written since the last
+     * checkpoint. Runs on the writer thread.
      */
-    @SuppressWarnings("unchecked")
     private void loadData() {
+        lock.writeLock().lock();
         try {
-            FileInputStream fileIn = context.openFileInput(DATA_FILE);
-            ObjectInputStream in = new ObjectInputStream(fileIn);
-            albums = (List<Album>) in.readObject();
-            in.close();
-            fileIn.close();
-            Log.d(TAG, "Data loaded successfully");
-        } catch (IOException | ClassNotFoundException e) {
-            Log.d(TAG, "No saved data found or error loading data: " + e.getMessage());
-            albums = new ArrayList<>();
-        }
-    }
-}
\ No newline at end of file
+            try {
+                albums = store.load(dirtyAlbums);
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading data, changes will not be saved: " + e.getMessage());
+                dirtyAlbums.clear();
+                readOnly = true;
+                return;
+            }
+            albumsByName.clear();
+            for (Album album : albums) {
+                albumsByName.put(album.getName(), album);
+            }
+            int merged = photoRegistry.rebuild(albums);
+            tagIndex.rebuild(albums);
+            dataGeneration++;
+            if (merged > 0) {
+                Log.d(TAG, "Merged " + merged + " duplicate photos");
+            }
+
+            if (store.needsFullCheckpoint() || merged > 0) {
+                saveData();
+            } else if (store.needsCheckpoint() || manifestSummaries.size() != albums.size()) {
+                checkpointRequested = true;
+                scheduleSave();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.cs213.androidphotos.util;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.cs213.androidphotos.model.PhotoRegistry;
+
+import java.util.function.Consumer;
+
+/**
+ * LRU cache of decoded photos, keyed by file path and the size they were
+ * decoded for, and bounded by the total bytes of the bitmaps it holds.
+ * A listener is told about every bitmap that leaves the cache, so it can be
+ * reused once nothing else shows it.
+ * <p>
+ * Thread-safe, as bitmaps are added by the loader's background threads and
+ * looked up on the main thread.
+ */
+public class BitmapCache {
+
+    private final LruCache<String, Bitmap> bitmaps;
+
+    /**
+     * Creates a cache holding up to the given number of bytes of bitmaps.
+     *
+     * @param maxBytes the maximum total size of the cached bitmaps
+     * @param onRemoved called with each bitmap evicted or replaced, on the thread that removed it
+     */
+    public BitmapCache(int maxBytes, Consumer<Bitmap> onRemoved) {
+        this.bitmaps = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                onRemoved.accept(oldValue);
+            }
+        };
+    }
+
+    /**
+     * Builds the cache key for a photo decoded for a target size.
+     *
+     * @param filePath the file path or content URI of the photo
+     * @param targetWidth the width the photo was decoded for
+     * @param targetHeight the height the photo was decoded for
+     * @param fit whether the photo is scaled to fit inside the target rather than fill it
+     * @return the key
+     */
+    public static String key(String filePath, int targetWidth, int targetHeight, boolean fit) {
+        return PhotoRegistry.normalizePath(filePath) + '|' + targetWidth + 'x' + targetHeight
+                + (fit ? "|fit" : "|fill");
+    }
+
+    /**
+     * Gets a cached bitmap.
+     *
+     * @param key the key, from {@link #key(String, int, int, boolean)}
+     * @return the bitmap, or null on a miss
+     */
+    public Bitmap get(String key) {
+        return bitmaps.get(key);
+    }
+
+    /**
+     * Caches a bitmap, evicting the least recently used ones if the cache is full.
+     * A bitmap larger than the whole cache is not kept.
+     *
+     * @param key the key, from {@link #key(String, int, int, boolean)}
+     * @param bitmap the bitmap
+     */
+    public void put(String key, Bitmap bitmap) {
+        bitmaps.put(key, bitmap);
+    }
+
+    /**
+     * Evicts the least recently used bitmaps until the cache holds at most
+     * the given number of bytes.
+     *
+     * @param maxBytes the number of bytes to keep, or 0 to empty the cache
+     */
+    public void trimToSize(int maxBytes) {
+        bitmaps.trimToSize(maxBytes);
+    }
+
+    /**
+     * Gets the total size of the cached bitmaps.
+     *
+     * @return the size in bytes
+     */
+    public int getSize() {
+        return bitmaps.size();
+    }
+
+    /**
+     * Gets the maximum total size of the cached bitmaps.
+     *
+     * @return the size in bytes
+     */
+    public int getMaxSize() {
+        return bitmaps.maxSize();
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return bitmaps.hitCount();
+    }
+
+    /**
+     * Gets the number of lookups that had to be decoded.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return bitmaps.missCount();
+    }
+
+    /**
+     * Gets the number of bitmaps evicted to make room for others.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return bitmaps.evictionCount();
+    }
+}
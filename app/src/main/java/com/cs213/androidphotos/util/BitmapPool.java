@@ -0,0 +1,149 @@
+package com.cs213.androidphotos.util;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of bitmaps no longer in use, for decoding into with
+ * {@code BitmapFactory.Options.inBitmap} instead of allocating new ones.
+ * <p>
+ * A bitmap must not be reused while anything still draws it, so the pool
+ * counts references: the memory cache and each view showing a bitmap hold
+ * one, taken with {@link #acquire(Bitmap)}. When the last is released, the
+ * bitmap goes into the pool. Bitmaps are bucketed by allocation size, and
+ * {@link #get(int, int)} hands out the smallest one large enough, as long as
+ * it is less than twice the size needed. Only mutable ARGB_8888 bitmaps can
+ * be reused. The pool is bounded by total bytes, dropping the largest
+ * bitmaps first.
+ * <p>
+ * Thread-safe. Callers that look a bitmap up elsewhere and then acquire it
+ * should hold the pool's lock, so it cannot be released in between.
+ */
+public class BitmapPool {
+
+    private final long maxBytes;
+    // Allocation size -> free bitmaps of that size
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+    // Weak, as a view that is discarded never releases its bitmap. Bitmap does not override equals.
+    private final Map<Bitmap, Integer> references = new WeakHashMap<>();
+    private long size;
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates a pool holding up to the given number of bytes of free bitmaps.
+     *
+     * @param maxBytes the maximum total size of the pooled bitmaps
+     */
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Takes a reference to a bitmap, so it is not reused until released.
+     *
+     * @param bitmap the bitmap
+     */
+    public synchronized void acquire(Bitmap bitmap) {
+        references.merge(bitmap, 1, Integer::sum);
+    }
+
+    /**
+     * Releases a reference to a bitmap, pooling it if it was the last.
+     * Bitmaps without references are ignored.
+     *
+     * @param bitmap the bitmap
+     */
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = references.get(bitmap);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            references.put(bitmap, count - 1);
+            return;
+        }
+        references.remove(bitmap);
+        put(bitmap);
+    }
+
+    /**
+     * Takes a free bitmap that an image of the given size can be decoded into.
+     *
+     * @param width the decoded width
+     * @param height the decoded height
+     * @return a mutable ARGB_8888 bitmap, or null if none fits
+     */
+    public synchronized Bitmap get(int width, int height) {
+        int bytes = width * height * 4;
+        Map.Entry<Integer, ArrayDeque<Bitmap>> bucket = buckets.ceilingEntry(bytes);
+        if (bucket == null || bucket.getKey() / 2 >= bytes) {
+            misses++;
+            return null;
+        }
+        Bitmap bitmap = bucket.getValue().poll();
+        if (bucket.getValue().isEmpty()) {
+            buckets.remove(bucket.getKey());
+        }
+        size -= bucket.getKey();
+        hits++;
+        return bitmap;
+    }
+
+    /**
+     * Drops every pooled bitmap, leaving them to the garbage collector.
+     */
+    public synchronized void clear() {
+        buckets.clear();
+        size = 0;
+    }
+
+    /**
+     * Gets the total size of the pooled bitmaps.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the number of decodes that reused a pooled bitmap.
+     *
+     * @return the hit count
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of decodes that found no bitmap to reuse.
+     *
+     * @return the miss count
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    private void put(Bitmap bitmap) {
+        int bytes = bitmap.getAllocationByteCount();
+        if (bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888
+                || bytes > maxBytes) {
+            return;
+        }
+        buckets.computeIfAbsent(bytes, key -> new ArrayDeque<>()).push(bitmap);
+        size += bytes;
+        while (size > maxBytes) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> largest = buckets.lastEntry();
+            largest.getValue().poll();
+            if (largest.getValue().isEmpty()) {
+                buckets.remove(largest.getKey());
+            }
+            size -= largest.getKey();
+        }
+    }
+}
@@ -0,0 +1,547 @@
+package com.cs213.androidphotos.util;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.widget.ImageView;
+
+import com.cs213.androidphotos.R;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads photos into ImageViews, decoding them on a small pool of background
+ * threads and delivering the bitmaps on the main thread.
+ * <p>
+ * Photos are decoded at about the size they are shown. The image bounds are
+ * read first, then the image is decoded with the largest power-of-two
+ * {@code inSampleSize} that keeps it at least as large as it is shown. A
+ * 12-megapixel photo shown as a grid thumbnail is decoded at 1/8 scale,
+ * taking about 750 KB instead of 48 MB.
+ * <p>
+ * Decoded photos are kept in a {@link BitmapCache} shared by every activity,
+ * so scrolling back or returning to a screen shows them without reading the
+ * file again. The cache gets 1/{@value #MEMORY_CACHE_FRACTION} of the app's
+ * memory class and is emptied when the system runs short of memory.
+ * Thumbnails, which fill their grid cell, are also saved to a
+ * {@link ThumbnailDiskCache}, so after a restart they are read from small
+ * files rather than decoded from the originals.
+ * <p>
+ * Bitmaps that leave the memory cache and are no longer shown go into a
+ * {@link BitmapPool}, and later decodes reuse them through
+ * {@code inBitmap} rather than allocating new ones. The loader tracks the
+ * bitmap it set on each view for this, so views given photos by this class
+ * should not have their bitmaps replaced by other code.
+ * <p>
+ * Each view's pending load is kept in its {@code R.id.image_request} tag.
+ * Giving the view another photo, or calling {@link #cancel(ImageView)} when
+ * an adapter recycles it, cancels the load, and a result that arrives for a
+ * view given another photo since is never shown. Loads run newest first, so
+ * the cells just bound, which are the ones on screen, come before those
+ * scrolled past. {@link #prefetchThumbnails(List)} decodes a small window of
+ * photos about to scroll into view, after everything on screen.
+ * <p>
+ * The public methods, other than {@link #decode(String, int, int, boolean)},
+ * must be called on the main thread.
+ */
+public class ImageLoader {
+    private static final String TAG = "ImageLoader";
+    private static final int MAX_THREADS = 4;
+    private static final int MAX_PREFETCH = 24;
+    private static final int MEMORY_CACHE_FRACTION = 8;
+    private static final int POOL_FRACTION = 32;
+    private static final String DISK_CACHE_DIR = "thumbnails";
+    private static final long DISK_CACHE_BYTES = 50L * 1024 * 1024;
+
+    private static ImageLoader instance;
+
+    private final Context context;
+    private final ThreadPoolExecutor decoder;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final int thumbnailSize;
+    private final BitmapCache memoryCache;
+    private final BitmapPool bitmapPool;
+    private final ThumbnailDiskCache diskCache;
+    // The bitmap each view shows, holding a pool reference. Main thread only.
+    private final Map<ImageView, Bitmap> shown = new WeakHashMap<>();
+    // The current prefetch window. Main thread only.
+    private final List<Request> prefetches = new ArrayList<>();
+
+    /**
+     * A photo being loaded into a view, or into the memory cache only if
+     * there is no view.
+     */
+    private final class Request implements Runnable {
+        private final String filePath;
+        private final String key;
+        private final ImageView view;
+        private final int targetWidth;
+        private final int targetHeight;
+        private final boolean fit;
+        private volatile boolean cancelled;
+
+        private Request(String filePath, String key, ImageView view, int targetWidth, int targetHeight,
+                        boolean fit) {
+            this.filePath = filePath;
+            this.key = key;
+            this.view = view;
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.fit = fit;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+
+            Bitmap bitmap = null;
+            try {
+                // A prefetch may have been overtaken by a view loading the same photo
+                if (view == null && memoryCache.get(key) != null) {
+                    return;
+                }
+                bitmap = fit
+                        ? decode(filePath, targetWidth, targetHeight, true)
+                        : decodeThumbnail(filePath, targetWidth, targetHeight);
+                // One reference for the cache, and one until the bitmap is delivered
+                bitmapPool.acquire(bitmap);
+                if (view != null) {
+                    bitmapPool.acquire(bitmap);
+                }
+                memoryCache.put(key, bitmap);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error loading " + filePath + ": " + e.getMessage());
+            }
+            if (view != null) {
+                Bitmap result = bitmap;
+                mainHandler.post(() -> deliver(this, result));
+            }
+        }
+    }
+
+    /**
+     * Work queue that hands out the newest load first, as the views bound
+     * last are the ones on screen. Prefetches queue behind every load for a
+     * view, in order.
+     */
+    private static final class RequestQueue extends LinkedBlockingDeque<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean offer(Runnable runnable) {
+            if (runnable instanceof Request && ((Request) runnable).view == null) {
+                return offerLast(runnable);
+            }
+            return offerFirst(runnable);
+        }
+    }
+
+    /**
+     * Private constructor for singleton pattern.
+     *
+     * @param context application context for opening content URIs
+     */
+    private ImageLoader(Context context) {
+        this.context = context.getApplicationContext();
+        this.thumbnailSize = this.context.getResources().getDimensionPixelSize(R.dimen.photo_thumbnail_size);
+        int threads = Math.max(2, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+        AtomicInteger count = new AtomicInteger();
+        this.decoder = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new RequestQueue(), runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "ImageLoader-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        ActivityManager activityManager = (ActivityManager) this.context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassBytes = activityManager.getMemoryClass() * 1024 * 1024;
+        this.bitmapPool = new BitmapPool(memoryClassBytes / POOL_FRACTION);
+        this.memoryCache = new BitmapCache(memoryClassBytes / MEMORY_CACHE_FRACTION, bitmapPool::release);
+        this.diskCache = new ThumbnailDiskCache(new File(this.context.getCacheDir(), DISK_CACHE_DIR), DISK_CACHE_BYTES);
+        this.context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+        });
+    }
+
+    /**
+     * Gets the singleton instance of the image loader.
+     *
+     * @param context any context; the application context is kept
+     * @return the singleton instance
+     */
+    public static synchronized ImageLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new ImageLoader(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Loads a photo into a grid cell, decoded at thumbnail size.
+     *
+     * @param filePath the file path or content URI of the photo
+     * @param view the view to show the photo in
+     */
+    public void loadThumbnail(String filePath, ImageView view) {
+        load(filePath, view, thumbnailSize, thumbnailSize, false);
+    }
+
+    /**
+     * Loads a photo scaled to fit inside a view that can fill the screen,
+     * decoded at about the size it is shown.
+     *
+     * @param filePath the file path or content URI of the photo
+     * @param view the view to show the photo in
+     */
+    public void loadFitScreen(String filePath, ImageView view) {
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        load(filePath, view, metrics.widthPixels, metrics.heightPixels, true);
+    }
+
+    /**
+     * Loads a photo into a view, filling it, in the background. A photo in
+     * the memory cache is shown at once; otherwise the view is cleared until
+     * the photo is ready, and shows a placeholder if it cannot be decoded.
+     *
+     * @param filePath the file path or content URI of the photo
+     * @param view the view to show the photo in
+     * @param targetWidth the width the photo is shown at, in pixels
+     * @param targetHeight the height the photo is shown at, in pixels
+     */
+    public void load(String filePath, ImageView view, int targetWidth, int targetHeight) {
+        load(filePath, view, targetWidth, targetHeight, false);
+    }
+
+    private void load(String filePath, ImageView view, int targetWidth, int targetHeight, boolean fit) {
+        String key = BitmapCache.key(filePath, targetWidth, targetHeight, fit);
+        Request previous = (Request) view.getTag(R.id.image_request);
+        if (previous != null) {
+            if (previous.key.equals(key)) {
+                // Rebound to the photo it is already loading
+                return;
+            }
+            cancel(previous);
+            view.setTag(R.id.image_request, null);
+        }
+
+        Bitmap cached;
+        // Held so that the bitmap cannot be evicted and pooled before the view's reference is taken
+        synchronized (bitmapPool) {
+            cached = memoryCache.get(key);
+            if (cached != null) {
+                bitmapPool.acquire(cached);
+            }
+        }
+        if (cached != null) {
+            show(view, cached);
+            return;
+        }
+
+        for (Request prefetch : prefetches) {
+            if (prefetch.key.equals(key)) {
+                cancel(prefetch);
+            }
+        }
+        Request request = new Request(filePath, key, view, targetWidth, targetHeight, fit);
+        view.setTag(R.id.image_request, request);
+        show(view, null);
+        decoder.execute(request);
+    }
+
+    /**
+     * Cancels the photo a view is waiting for, if any. Call it when an
+     * adapter recycles the view, so photos scrolled past are not decoded.
+     * The view keeps showing whatever it shows.
+     *
+     * @param view the view
+     */
+    public void cancel(ImageView view) {
+        Request request = (Request) view.getTag(R.id.image_request);
+        if (request != null) {
+            cancel(request);
+            view.setTag(R.id.image_request, null);
+        }
+    }
+
+    /**
+     * Decodes thumbnails of photos about to scroll into view into the memory
+     * cache, after every photo already requested for a view. Replaces the
+     * previous window, cancelling the photos not yet started; passing the same
+     * photos again leaves it as it is. At most {@value #MAX_PREFETCH} photos
+     * are taken.
+     *
+     * @param filePaths the file paths or content URIs of the photos, nearest first
+     */
+    public void prefetchThumbnails(List<String> filePaths) {
+        int count = Math.min(filePaths.size(), MAX_PREFETCH);
+        if (count == prefetches.size()) {
+            boolean same = true;
+            for (int i = 0; i < count && same; i++) {
+                same = prefetches.get(i).filePath.equals(filePaths.get(i));
+            }
+            if (same) {
+                return;
+            }
+        }
+
+        for (Request prefetch : prefetches) {
+            cancel(prefetch);
+        }
+        prefetches.clear();
+        for (int i = 0; i < count; i++) {
+            String filePath = filePaths.get(i);
+            Request request = new Request(filePath, BitmapCache.key(filePath, thumbnailSize, thumbnailSize, false),
+                    null, thumbnailSize, thumbnailSize, false);
+            prefetches.add(request);
+            decoder.execute(request);
+        }
+    }
+
+    /**
+     * Decodes a photo at about the given size, reusing a pooled bitmap if
+     * one fits. Blocks; call it on a background thread.
+     *
+     * @param filePath the file path or content URI of the photo
+     * @param targetWidth the width the photo is shown at, in pixels
+     * @param targetHeight the height the photo is shown at, in pixels
+     * @param fit true if the photo is scaled to fit inside the target, false if it fills it
+     * @return the bitmap, at least the size it is shown at unless the photo is smaller
+     * @throws IOException if the photo cannot be read or is not an image
+     */
+    public Bitmap decode(String filePath, int targetWidth, int targetHeight, boolean fit) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(filePath, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + filePath);
+        }
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                targetWidth, targetHeight, fit);
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        int sampleSize = options.inSampleSize;
+        options.inBitmap = bitmapPool.get((options.outWidth + sampleSize - 1) / sampleSize,
+                (options.outHeight + sampleSize - 1) / sampleSize);
+        Bitmap bitmap;
+        try {
+            bitmap = decode(filePath, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // The pooled bitmap did not suit this image after all; it is left to the garbage collector
+            options.inBitmap = null;
+            bitmap = decode(filePath, options);
+        }
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + filePath);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Calculates the largest power-of-two sample size that keeps an image at
+     * least as large as it is shown. An image filling the target must cover
+     * it in both dimensions; one fitting inside only needs to reach it in one.
+     *
+     * @param width the image width
+     * @param height the image height
+     * @param targetWidth the target width, or 0 to decode at full size
+     * @param targetHeight the target height, or 0 to decode at full size
+     * @param fit true if the image is scaled to fit inside the target, false if it fills it
+     * @return the value for {@code inSampleSize}
+     */
+    public static int calculateInSampleSize(int width, int height, int targetWidth, int targetHeight,
+                                            boolean fit) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
+        }
+        while (true) {
+            boolean wideEnough = width / (sampleSize * 2) >= targetWidth;
+            boolean tallEnough = height / (sampleSize * 2) >= targetHeight;
+            if (fit ? !wideEnough && !tallEnough : !wideEnough || !tallEnough) {
+                return sampleSize;
+            }
+            sampleSize *= 2;
+        }
+    }
+
+    /**
+     * Gets the cache of decoded photos, for its statistics.
+     *
+     * @return the memory cache
+     */
+    public BitmapCache getMemoryCache() {
+        return memoryCache;
+    }
+
+    /**
+     * Gets the pool of reusable bitmaps, for its statistics.
+     *
+     * @return the bitmap pool
+     */
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * Gets the cache of thumbnail files, for its statistics.
+     *
+     * @return the disk cache
+     */
+    public ThumbnailDiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * Reads a thumbnail from the disk cache, or decodes it from the original
+     * and saves it there.
+     */
+    private Bitmap decodeThumbnail(String filePath, int targetWidth, int targetHeight) throws IOException {
+        String diskKey = ThumbnailDiskCache.key(filePath, getSourceVersion(filePath), targetWidth, targetHeight);
+        File cached = diskCache.get(diskKey);
+        if (cached != null) {
+            try {
+                return decode(cached.getPath(), 0, 0, false);
+            } catch (IOException e) {
+                // Evicted since it was found, or damaged
+                diskCache.remove(diskKey);
+            }
+        }
+        Bitmap bitmap = decode(filePath, targetWidth, targetHeight, false);
+        diskCache.put(diskKey, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Gets the size and last-modified time of a photo, as far as they are
+     * known, so a thumbnail of an older version is not reused.
+     */
+    private String getSourceVersion(String filePath) {
+        if (!filePath.startsWith("content://")) {
+            File file = new File(filePath);
+            return file.length() + ":" + file.lastModified();
+        }
+
+        try (Cursor cursor = context.getContentResolver().query(Uri.parse(filePath), null, null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return "";
+            }
+            int sizeColumn = cursor.getColumnIndex(OpenableColumns.SIZE);
+            int modifiedColumn = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            long size = sizeColumn >= 0 && !cursor.isNull(sizeColumn) ? cursor.getLong(sizeColumn) : -1;
+            long modified = modifiedColumn >= 0 && !cursor.isNull(modifiedColumn) ? cursor.getLong(modifiedColumn) : -1;
+            return size + ":" + modified;
+        } catch (RuntimeException e) {
+            // Providers may refuse the query; the thumbnail is then keyed by path and size only
+            Log.e(TAG, "Error reading details of " + filePath + ": " + e.getMessage());
+            return "";
+        }
+    }
+
+    private Bitmap decode(String filePath, BitmapFactory.Options options) throws IOException {
+        if (filePath.startsWith("content://")) {
+            try (InputStream inputStream = context.getContentResolver().openInputStream(Uri.parse(filePath))) {
+                if (inputStream == null) {
+                    throw new IOException("Could not open " + filePath);
+                }
+                return BitmapFactory.decodeStream(inputStream, null, options);
+            }
+        }
+        return BitmapFactory.decodeFile(filePath, options);
+    }
+
+    private void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            memoryCache.trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            memoryCache.trimToSize(memoryCache.getMaxSize() / 2);
+        }
+        bitmapPool.clear();
+        Log.d(TAG, "Trimmed memory cache to " + memoryCache.getSize() + " bytes; "
+                + memoryCache.getHitCount() + " hits, " + memoryCache.getMissCount() + " misses, "
+                + memoryCache.getEvictionCount() + " evictions");
+    }
+
+    private void cancel(Request request) {
+        request.cancelled = true;
+        decoder.remove(request);
+    }
+
+    /**
+     * Shows a decoded photo, unless the view has been given another photo
+     * since. The view takes over the delivery reference to the bitmap.
+     */
+    private void deliver(Request request, Bitmap bitmap) {
+        ImageView view = request.view;
+        if (view.getTag(R.id.image_request) != request) {
+            if (bitmap != null) {
+                bitmapPool.release(bitmap);
+            }
+            return;
+        }
+        view.setTag(R.id.image_request, null);
+        show(view, bitmap);
+        if (bitmap == null) {
+            view.setImageResource(android.R.drawable.ic_menu_gallery);
+        }
+    }
+
+    /**
+     * Shows a bitmap in a view, or clears the view. The view takes over a
+     * reference the caller holds to the bitmap, and releases the one to the
+     * bitmap it showed before.
+     */
+    private void show(ImageView view, Bitmap bitmap) {
+        Bitmap previous = bitmap != null ? shown.put(view, bitmap) : shown.remove(view);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+        } else {
+            view.setImageDrawable(null);
+        }
+        if (previous != null) {
+            bitmapPool.release(previous);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.cs213.androidphotos.util;
+
+import com.cs213.androidphotos.model.Album;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Persistent storage for the album data, used by AppDataManager.
+ * <p>
+ * The data manager keeps every album in memory and reports each change as a
+ * {@link Mutation}. A store persists mutations as they are made, and from
+ * time to time (or when asked) takes a checkpoint of the albums that changed.
+ * Checkpoints are prepared while the albums are locked and committed after the
+ * lock is released. All methods are called from the data manager's writer thread.
+ */
+public interface LibraryStore {
+
+    /**
+     * Albums encoded for a checkpoint, ready to be committed.
+     */
+    interface Checkpoint {
+
+        /**
+         * Gets the albums this checkpoint rewrites.
+         *
+         * @return the written albums
+         */
+        Set<Album> getWrittenAlbums();
+    }
+
+    /**
+     * Loads every album, including changes persisted since the last checkpoint.
+     *
+     * @param changed receives albums that must be included in the next checkpoint
+     * @return the loaded albums, in order
+     * @throws IOException if any of the saved data cannot be read; nothing may
+     *                     then be written, so the data is left for recovery
+     */
+    List<Album> load(Set<Album> changed) throws IOException;
+
+    /**
+     * Checks whether the next checkpoint must rewrite every album, for example
+     * because the data was migrated from another format.
+     *
+     * @return true if every album must be rewritten
+     */
+    boolean needsFullCheckpoint();
+
+    /**
+     * Checks whether the next save should be a checkpoint rather than
+     * appending mutations.
+     *
+     * @return true if a checkpoint is due
+     */
+    boolean needsCheckpoint();
+
+    /**
+     * Persists mutations, in order.
+     *
+     * @param mutations the mutations to persist
+     * @throws IOException if writing fails; the next save must then be a checkpoint
+     */
+    void append(List<Mutation> mutations) throws IOException;
+
+    /**
+     * Captures the changed albums for a checkpoint. Called while the albums
+     * are locked, so it should not do any I/O.
+     *
+     * @param albums every album, in order
+     * @param dirty the albums changed since the last checkpoint
+     * @return the prepared checkpoint
+     * @throws IOException if an album cannot be encoded
+     */
+    Checkpoint prepareCheckpoint(List<Album> albums, Set<Album> dirty) throws IOException;
+
+    /**
+     * Writes a prepared checkpoint.
+     *
+     * @param checkpoint the checkpoint to write
+     * @throws IOException if writing fails; previously persisted data remains valid
+     */
+    void commit(Checkpoint checkpoint) throws IOException;
+}
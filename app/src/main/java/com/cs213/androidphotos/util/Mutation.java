@@ -0,0 +1,357 @@
+package com.cs213.androidphotos.util;
+
+import com.cs213.androidphotos.model.Album;
+import com.cs213.androidphotos.model.Photo;
+import com.cs213.androidphotos.model.Tag;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A single change to the album data, as recorded in the mutation journal.
+ * Albums are identified by name and photos by their album and file path,
+ * which is enough to replay the change on top of a loaded snapshot.
+ */
+public final class Mutation {
+
+    /**
+     * The kinds of changes that can be journaled.
+     */
+    public enum Type {
+        ALBUM_CREATED,
+        ALBUM_RENAMED,
+        ALBUM_DELETED,
+        PHOTO_ADDED,
+        PHOTO_REMOVED,
+        PHOTO_MOVED,
+        TAG_ADDED,
+        TAG_REMOVED
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    private final Type type;
+    private final String album;
+    private final String otherAlbum;
+    private final String path;
+    private final String tagType;
+    private final String tagValue;
+    private long time;
+
+    private Mutation(Type type, String album, String otherAlbum, String path, String tagType, String tagValue) {
+        this.type = type;
+        this.album = album;
+        this.otherAlbum = otherAlbum;
+        this.path = path;
+        this.tagType = tagType;
+        this.tagValue = tagValue;
+        this.time = System.currentTimeMillis();
+    }
+
+    public static Mutation albumCreated(String name) {
+        return new Mutation(Type.ALBUM_CREATED, name, null, null, null, null);
+    }
+
+    public static Mutation albumRenamed(String oldName, String newName) {
+        return new Mutation(Type.ALBUM_RENAMED, oldName, newName, null, null, null);
+    }
+
+    public static Mutation albumDeleted(String name) {
+        return new Mutation(Type.ALBUM_DELETED, name, null, null, null, null);
+    }
+
+    /**
+     * Records a photo being added to an album.
+     *
+     * @param album the album the photo was added to
+     * @param path the photo's file path
+     * @param sourceAlbum an album already holding the same Photo object, or null for a new photo
+     * @return the mutation
+     */
+    public static Mutation photoAdded(String album, String path, String sourceAlbum) {
+        return new Mutation(Type.PHOTO_ADDED, album, sourceAlbum, path, null, null);
+    }
+
+    public static Mutation photoRemoved(String album, String path) {
+        return new Mutation(Type.PHOTO_REMOVED, album, null, path, null, null);
+    }
+
+    public static Mutation photoMoved(String fromAlbum, String toAlbum, String path) {
+        return new Mutation(Type.PHOTO_MOVED, fromAlbum, toAlbum, path, null, null);
+    }
+
+    public static Mutation tagAdded(String album, String path, String tagType, String tagValue) {
+        return new Mutation(Type.TAG_ADDED, album, null, path, tagType, tagValue);
+    }
+
+    public static Mutation tagRemoved(String album, String path, String tagType, String tagValue) {
+        return new Mutation(Type.TAG_REMOVED, album, null, path, tagType, tagValue);
+    }
+
+    /**
+     * Gets the kind of this mutation.
+     *
+     * @return the mutation type
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Gets the name of the album this mutation applies to.
+     *
+     * @return the album name
+     */
+    public String getAlbum() {
+        return album;
+    }
+
+    /**
+     * Gets the second album involved: the new name for a rename, the
+     * destination of a move, or the album sharing an added photo.
+     *
+     * @return the other album name, or null if there is none
+     */
+    public String getOtherAlbum() {
+        return otherAlbum;
+    }
+
+    /**
+     * Gets the file path of the photo this mutation applies to.
+     *
+     * @return the photo path, or null for album mutations
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Gets the type of the tag added or removed.
+     *
+     * @return the tag type, or null for album and photo mutations
+     */
+    public String getTagType() {
+        return tagType;
+    }
+
+    /**
+     * Gets the value of the tag added or removed.
+     *
+     * @return the tag value, or null for album and photo mutations
+     */
+    public String getTagValue() {
+        return tagValue;
+    }
+
+    /**
+     * Gets the time this mutation was made.
+     *
+     * @return the time in milliseconds since the epoch, or 0 if it was not recorded
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Writes this mutation in the journal record format.
+     *
+     * @param out the output to write to
+     * @throws IOException if writing fails
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(type.ordinal());
+        out.writeLong(time);
+        out.writeUTF(album);
+        switch (type) {
+            case ALBUM_RENAMED:
+            case PHOTO_MOVED:
+                out.writeUTF(otherAlbum);
+                break;
+            case PHOTO_ADDED:
+                out.writeUTF(otherAlbum == null ? "" : otherAlbum);
+                break;
+            default:
+                break;
+        }
+        if (path != null) {
+            out.writeUTF(path);
+        }
+        if (tagType != null) {
+            out.writeUTF(tagType);
+            out.writeUTF(tagValue);
+        }
+    }
+
+    /**
+     * Reads a mutation written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in the input to read from
+     * @param timed whether the record includes its time; older journals did not
+     * @return the mutation
+     * @throws IOException if the record is truncated or malformed
+     */
+    public static Mutation readFrom(DataInput in, boolean timed) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= TYPES.length) {
+            throw new IOException("Unknown mutation type " + ordinal);
+        }
+        Type type = TYPES[ordinal];
+        long time = timed ? in.readLong() : 0;
+        Mutation mutation = readFields(in, type, in.readUTF());
+        mutation.time = time;
+        return mutation;
+    }
+
+    private static Mutation readFields(DataInput in, Type type, String album) throws IOException {
+        switch (type) {
+            case ALBUM_CREATED:
+                return albumCreated(album);
+            case ALBUM_RENAMED:
+                return albumRenamed(album, in.readUTF());
+            case ALBUM_DELETED:
+                return albumDeleted(album);
+            case PHOTO_ADDED: {
+                String source = in.readUTF();
+                return photoAdded(album, in.readUTF(), source.isEmpty() ? null : source);
+            }
+            case PHOTO_REMOVED:
+                return photoRemoved(album, in.readUTF());
+            case PHOTO_MOVED: {
+                String toAlbum = in.readUTF();
+                return photoMoved(album, toAlbum, in.readUTF());
+            }
+            case TAG_ADDED:
+                return tagAdded(album, in.readUTF(), in.readUTF(), in.readUTF());
+            case TAG_REMOVED:
+                return tagRemoved(album, in.readUTF(), in.readUTF(), in.readUTF());
+            default:
+                throw new IOException("Unhandled mutation type " + type);
+        }
+    }
+
+    /**
+     * Replays this mutation on a list of albums.
+     * Mirrors the checks made by AppDataManager, so a mutation that no longer
+     * applies (for example, to an album that was since deleted) is skipped.
+     *
+     * @param albums the albums to modify
+     * @param changed receives the albums whose contents were changed
+     * @return true if the albums were changed
+     */
+    public boolean applyTo(List<Album> albums, Set<Album> changed) {
+        Album target = findAlbum(albums, album);
+
+        switch (type) {
+            case ALBUM_CREATED:
+                if (target != null) {
+                    return false;
+                }
+                target = new Album(album);
+                albums.add(target);
+                touch(target, changed);
+                return true;
+
+            case ALBUM_RENAMED:
+                if (target == null || findAlbum(albums, otherAlbum) != null) {
+                    return false;
+                }
+                target.setName(otherAlbum);
+                touch(target, changed);
+                return true;
+
+            case ALBUM_DELETED:
+                return target != null && albums.remove(target);
+
+            case PHOTO_ADDED: {
+                if (target == null) {
+                    return false;
+                }
+                Photo photo = null;
+                if (otherAlbum != null) {
+                    photo = findPhoto(findAlbum(albums, otherAlbum), path);
+                }
+                return touch(target, changed, target.addPhoto(photo != null ? photo : new Photo(path)));
+            }
+
+            case PHOTO_REMOVED: {
+                Photo photo = findPhoto(target, path);
+                return photo != null && touch(target, changed, target.removePhoto(photo));
+            }
+
+            case PHOTO_MOVED: {
+                Album destination = findAlbum(albums, otherAlbum);
+                Photo photo = findPhoto(target, path);
+                if (photo == null || destination == null || destination == target) {
+                    return false;
+                }
+                if (target.removePhoto(photo) && destination.addPhoto(photo)) {
+                    touch(target, changed);
+                    touch(destination, changed);
+                    return true;
+                }
+                if (!target.containsPhoto(photo)) {
+                    target.addPhoto(photo);
+                    changed.add(target);
+                }
+                return false;
+            }
+
+            case TAG_ADDED: {
+                Photo photo = findPhoto(target, path);
+                return photo != null && Tag.isValidType(tagType)
+                        && touch(target, changed, photo.addTag(Tag.of(tagType, tagValue)));
+            }
+
+            case TAG_REMOVED: {
+                Photo photo = findPhoto(target, path);
+                return photo != null && Tag.isValidType(tagType)
+                        && touch(target, changed, photo.removeTag(Tag.of(tagType, tagValue)));
+            }
+
+            default:
+                return false;
+        }
+    }
+
+    private void touch(Album album, Set<Album> changed) {
+        if (time > 0) {
+            album.setLastModified(time);
+        }
+        changed.add(album);
+    }
+
+    private boolean touch(Album album, Set<Album> changed, boolean applied) {
+        if (applied) {
+            touch(album, changed);
+        }
+        return applied;
+    }
+
+    private static Album findAlbum(List<Album> albums, String name) {
+        for (Album album : albums) {
+            if (album.getName().equals(name)) {
+                return album;
+            }
+        }
+        return null;
+    }
+
+    private static Photo findPhoto(Album album, String path) {
+        return album != null ? album.getPhoto(path) : null;
+    }
+
+    /**
+     * Returns a string representation of this mutation.
+     *
+     * @return string representation
+     */
+    @Override
+    public String toString() {
+        return type + " " + album + (otherAlbum != null ? " -> " + otherAlbum : "")
+                + (path != null ? " " + path : "")
+                + (tagType != null ? " " + tagType + "=" + tagValue : "");
+    }
+}
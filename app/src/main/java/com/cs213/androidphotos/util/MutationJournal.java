@@ -0,0 +1,213 @@
+package com.cs213.androidphotos.util;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of mutations made since the last snapshot.
+ * <p>
+ * The file starts with a header naming the snapshot generation it belongs to.
+ * Each record is length-prefixed and checksummed, so a record torn by a crash
+ * ends the replay instead of corrupting it. A journal whose generation does not
+ * match the snapshot is stale (the snapshot already contains its changes) and
+ * is ignored.
+ */
+public class MutationJournal {
+    private static final String TAG = "MutationJournal";
+    private static final int MAGIC = 0x504A524E; // "PJRN"
+    private static final int VERSION = 2;
+    private static final int UNTIMED_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+    /** Journal size after which the next save compacts it into a snapshot. */
+    public static final long MAX_BYTES = 256 * 1024;
+    /** Journal age after which the next save compacts it into a snapshot. */
+    public static final long MAX_AGE_MS = TimeUnit.MINUTES.toMillis(15);
+
+    private final File file;
+    private long generation = -1;
+    private long createdAt;
+    private long size;
+
+    /**
+     * Creates a journal backed by the given file. Nothing is read until
+     * {@link #read(long)} is called.
+     *
+     * @param file the journal file
+     */
+    public MutationJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the mutations recorded on top of the given snapshot generation.
+     * If the journal is missing, stale or ends in a damaged record, whatever
+     * could be read is returned and the journal is left closed, so that
+     * {@link #isOpen()} is false until the next {@link #reset(long)}.
+     *
+     * @param snapshotGeneration the generation of the loaded snapshot
+     * @return the mutations to replay, in order
+     */
+    public List<Mutation> read(long snapshotGeneration) {
+        List<Mutation> mutations = new ArrayList<>();
+        generation = -1;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int magic = in.readInt();
+            int version = in.readInt();
+            if (magic != MAGIC || (version != VERSION && version != UNTIMED_VERSION)) {
+                Log.w(TAG, "Unrecognized journal header, ignoring journal");
+                return mutations;
+            }
+            long fileGeneration = in.readLong();
+            long fileCreatedAt = in.readLong();
+            if (fileGeneration != snapshotGeneration) {
+                Log.d(TAG, "Journal generation " + fileGeneration + " is stale, snapshot is " + snapshotGeneration);
+                return mutations;
+            }
+
+            long fileLength = file.length();
+            long validSize = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (validSize < fileLength) {
+                int length = in.readInt();
+                long checksum = in.readInt() & 0xFFFFFFFFL;
+                if (length < 0 || validSize + 8 + length > fileLength) {
+                    throw new EOFException("Torn journal record");
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if (crc.getValue() != checksum) {
+                    throw new IOException("Journal record checksum mismatch");
+                }
+                mutations.add(Mutation.readFrom(new DataInputStream(new ByteArrayInputStream(record)),
+                        version != UNTIMED_VERSION));
+                validSize += 8 + length;
+            }
+
+            if (version != VERSION) {
+                // Replayable, but new records must not be appended in the newer format
+                Log.d(TAG, "Journal version " + version + " will be replaced");
+                return mutations;
+            }
+            generation = fileGeneration;
+            createdAt = fileCreatedAt;
+            size = validSize;
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "No journal found");
+        } catch (IOException e) {
+            Log.w(TAG, "Journal damaged after " + mutations.size() + " records: " + e.getMessage());
+        }
+        return mutations;
+    }
+
+    /**
+     * Checks whether the journal can be appended to.
+     *
+     * @return true if the journal matches the current snapshot
+     */
+    public boolean isOpen() {
+        return generation >= 0;
+    }
+
+    /**
+     * Appends mutations to the journal and syncs them to storage.
+     *
+     * @param mutations the mutations to append, in order
+     * @throws IOException if the journal is not open or writing fails, in which
+     *         case the journal is closed until the next reset
+     */
+    public void append(List<Mutation> mutations) throws IOException {
+        if (!isOpen()) {
+            throw new IOException("Journal is not open");
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(record);
+        CRC32 crc = new CRC32();
+        for (Mutation mutation : mutations) {
+            record.reset();
+            mutation.writeTo(recordOut);
+            crc.reset();
+            crc.update(record.toByteArray());
+            out.writeInt(record.size());
+            out.writeInt((int) crc.getValue());
+            record.writeTo(out);
+        }
+
+        try (FileOutputStream fileOut = new FileOutputStream(file, true)) {
+            buffer.writeTo(fileOut);
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            // The file may now end in a partial record; refuse further appends
+            generation = -1;
+            throw e;
+        }
+        size += buffer.size();
+    }
+
+    /**
+     * Replaces the journal with an empty one for a newly written snapshot.
+     *
+     * @param snapshotGeneration the generation of the snapshot just written
+     * @throws IOException if the new journal cannot be written
+     */
+    public void reset(long snapshotGeneration) throws IOException {
+        generation = -1;
+        long now = System.currentTimeMillis();
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(snapshotGeneration);
+            out.writeLong(now);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace journal " + file);
+        }
+
+        generation = snapshotGeneration;
+        createdAt = now;
+        size = HEADER_SIZE;
+    }
+
+    /**
+     * Checks whether the journal has grown or aged enough that the next save
+     * should write a snapshot instead of appending.
+     *
+     * @return true if the journal should be compacted
+     */
+    public boolean needsCompaction() {
+        if (!isOpen()) {
+            return true;
+        }
+        if (size <= HEADER_SIZE) {
+            return false;
+        }
+        return size >= MAX_BYTES || System.currentTimeMillis() - createdAt >= MAX_AGE_MS;
+    }
+}
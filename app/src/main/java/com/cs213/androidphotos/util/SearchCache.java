@@ -0,0 +1,91 @@
+package com.cs213.androidphotos.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small LRU cache of search results, keyed by the normalized query text.
+ * <p>
+ * Each entry is stamped with the data generation it was computed at. The
+ * data manager bumps the generation on every change, so an entry from an
+ * older generation is treated as a miss and recomputed. Results are cached
+ * as photo id bitmaps, which stay valid for as long as the generation does.
+ * <p>
+ * Thread-safe, as searches run concurrently under AppDataManager's read lock.
+ */
+public class SearchCache {
+
+    private static final class Entry {
+        private final long generation;
+        private final RoaringBitmap results;
+
+        private Entry(long generation, RoaringBitmap results) {
+            this.generation = generation;
+            this.results = results;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates a cache holding up to the given number of queries.
+     *
+     * @param capacity the maximum number of cached queries
+     */
+    public SearchCache(int capacity) {
+        this.entries = new LinkedHashMap<String, Entry>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets the cached results of a query.
+     *
+     * @param key the normalized query
+     * @param generation the current data generation
+     * @return the cached photo ids, which must not be modified, or null on a miss
+     */
+    public synchronized RoaringBitmap get(String key, long generation) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.generation != generation) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.results;
+    }
+
+    /**
+     * Caches the results of a query.
+     *
+     * @param key the normalized query
+     * @param generation the data generation the results were computed at
+     * @param results the photo ids; the cache keeps a reference, so they must not be modified afterwards
+     */
+    public synchronized void put(String key, long generation, RoaringBitmap results) {
+        entries.put(key, new Entry(generation, results));
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return the hit count
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of lookups that had to be computed.
+     *
+     * @return the miss count
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+}
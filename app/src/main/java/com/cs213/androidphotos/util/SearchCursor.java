@@ -0,0 +1,85 @@
+package com.cs213.androidphotos.util;
+
+import com.cs213.androidphotos.model.Photo;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the results of a tag search a page at a time, so the first photos
+ * can be shown before the rest are looked up.
+ * <p>
+ * The cursor walks the matching photo ids in ascending order and stops once
+ * its limit is reached. If the library changes while the cursor is open, the
+ * next page re-runs the query and carries on with the matches it has not
+ * returned yet, so removed photos are skipped and later pages reflect the
+ * change. Since the ids of removed photos are reused, those are found by
+ * comparing photos rather than ids, and a photo added since may come before
+ * the ids already read.
+ * <p>
+ * Obtained from {@link AppDataManager#openSearch(TagQuery, int, int)}. Pages
+ * can be read from any thread, but not from several at once.
+ */
+public class SearchCursor {
+
+    private final AppDataManager manager;
+    private final int pageSize;
+    private final int limit;
+    final TagQuery query;
+    final Set<Photo> returnedPhotos = Collections.newSetFromMap(new IdentityHashMap<>());
+    RoaringBitmap ids;
+    long generation;
+    int position;
+    int returned;
+    int count;
+
+    SearchCursor(AppDataManager manager, TagQuery query, int pageSize, int limit,
+                 RoaringBitmap ids, long generation) {
+        this.manager = manager;
+        this.query = query;
+        this.pageSize = pageSize;
+        this.limit = limit > 0 ? limit : Integer.MAX_VALUE;
+        this.ids = ids;
+        this.generation = generation;
+        this.count = ids.cardinality();
+    }
+
+    /**
+     * Reads the next page of results.
+     *
+     * @return up to the page size of photos, or an empty list once the results or the limit are exhausted
+     */
+    public List<Photo> nextPage() {
+        return manager.readPage(this, Math.min(pageSize, limit - returned));
+    }
+
+    /**
+     * Checks whether another page may have results.
+     *
+     * @return false once every result has been read or the limit is reached
+     */
+    public boolean hasMore() {
+        return returned < limit && ids.nextValue(position) >= 0;
+    }
+
+    /**
+     * Gets the number of results, as of when the cursor was opened or last
+     * re-ran its query, capped at the limit.
+     *
+     * @return the number of results
+     */
+    public int getCount() {
+        return Math.min(count, limit);
+    }
+
+    /**
+     * Gets the number of photos returned so far.
+     *
+     * @return the number of photos read
+     */
+    public int getReturnedCount() {
+        return returned;
+    }
+}
@@ -0,0 +1,290 @@
+package com.cs213.androidphotos.util;
+
+import com.cs213.androidphotos.model.Album;
+import com.cs213.androidphotos.model.Photo;
+import com.cs213.androidphotos.model.Tag;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary format for snapshots of the album data.
+ * <p>
+ * Every string (album names, tag types and values, and photo paths split into
+ * directory and file name) is stored once in a dictionary and referenced by a
+ * varint id. Photos are stored once in a table, so a Photo object shared by
+ * several albums is shared again after reading. The payload, everything after
+ * the checksum, is covered by a CRC32, so a damaged file is rejected instead
+ * of being decoded into the wrong albums.
+ * <pre>
+ * int magic, int version, int payloadLength, int crc32
+ * long generation
+ * varint stringCount, { varint byteLength, UTF-8 bytes }*
+ * varint photoCount, { varint dirId, varint nameId, varint tagCount, { varint typeId, varint valueId }* }*
+ * varint albumCount, { varint nameId, long lastModified, varint photoCount, { varint photoIndex }* }*
+ * </pre>
+ * Versions 1 and 2 have no length or checksum, the generation following the
+ * version directly, and are still readable; version 1 also has no
+ * lastModified field.
+ */
+public final class SnapshotCodec {
+    private static final int MAGIC = 0x50485453; // "PHTS"
+    private static final int VERSION = 3;
+    private static final int UNCHECKED_VERSION = 2;
+    private static final int UNTIMED_VERSION = 1;
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    /**
+     * The contents of a snapshot file.
+     */
+    public static final class Snapshot {
+        public final List<Album> albums;
+        public final long generation;
+
+        Snapshot(List<Album> albums, long generation) {
+            this.albums = albums;
+            this.generation = generation;
+        }
+    }
+
+    private SnapshotCodec() {
+    }
+
+    /**
+     * Encodes albums into the snapshot format.
+     *
+     * @param albums the albums to encode
+     * @param generation the snapshot generation, matched against the journal
+     * @param output the stream to write to; it is not closed
+     * @throws IOException if writing fails
+     */
+    public static void write(List<Album> albums, long generation, OutputStream output) throws IOException {
+        StringTable strings = new StringTable();
+        Map<Photo, Integer> photoIndexes = new IdentityHashMap<>();
+        ByteArrayOutputStream photoBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream albumBytes = new ByteArrayOutputStream();
+        DataOutputStream photoOut = new DataOutputStream(photoBytes);
+        DataOutputStream albumOut = new DataOutputStream(albumBytes);
+
+        writeVarint(albumOut, albums.size());
+        for (Album album : albums) {
+            List<Photo> photos = album.getPhotos();
+            writeVarint(albumOut, strings.idOf(album.getName()));
+            albumOut.writeLong(album.getLastModified());
+            writeVarint(albumOut, photos.size());
+            for (Photo photo : photos) {
+                Integer index = photoIndexes.get(photo);
+                if (index == null) {
+                    index = photoIndexes.size();
+                    photoIndexes.put(photo, index);
+                    writePhoto(photoOut, photo, strings);
+                }
+                writeVarint(albumOut, index);
+            }
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        payloadOut.writeLong(generation);
+        strings.writeTo(payloadOut);
+        writeVarint(payloadOut, photoIndexes.size());
+        photoBytes.writeTo(payloadOut);
+        albumBytes.writeTo(payloadOut);
+        byte[] payloadBytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(payloadBytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payloadBytes);
+        out.flush();
+    }
+
+    private static void writePhoto(DataOutput out, Photo photo, StringTable strings) throws IOException {
+        String path = photo.getFilePath();
+        int split = path.lastIndexOf('/') + 1;
+        writeVarint(out, strings.idOf(path.substring(0, split)));
+        writeVarint(out, strings.idOf(path.substring(split)));
+
+        List<Tag> tags = photo.getTags();
+        writeVarint(out, tags.size());
+        for (Tag tag : tags) {
+            writeVarint(out, strings.idOf(tag.getType()));
+            writeVarint(out, strings.idOf(tag.getValue()));
+        }
+    }
+
+    /**
+     * Decodes a snapshot written by {@link #write(List, long, OutputStream)}.
+     *
+     * @param input the stream to read from; it is not closed
+     * @return the decoded snapshot
+     * @throws IOException if the data is not a snapshot, is truncated or fails its checksum
+     */
+    public static Snapshot read(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a snapshot file");
+        }
+        int version = in.readInt();
+        if (version != VERSION && version != UNCHECKED_VERSION && version != UNTIMED_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        if (version == VERSION) {
+            in = new DataInputStream(new ByteArrayInputStream(readPayload(in)));
+        }
+        long generation = in.readLong();
+
+        String[] strings = new String[readVarint(in)];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[readVarint(in)];
+            in.readFully(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        Photo[] photos = new Photo[readVarint(in)];
+        for (int i = 0; i < photos.length; i++) {
+            String directory = string(strings, readVarint(in));
+            Photo photo = new Photo(directory.concat(string(strings, readVarint(in))));
+            int tagCount = readVarint(in);
+            for (int t = 0; t < tagCount; t++) {
+                String type = string(strings, readVarint(in));
+                String value = string(strings, readVarint(in));
+                if (Tag.isValidType(type)) {
+                    photo.getTags().add(Tag.of(type, value));
+                }
+            }
+            photos[i] = photo;
+        }
+
+        int albumCount = readVarint(in);
+        List<Album> albums = new ArrayList<>(albumCount);
+        for (int i = 0; i < albumCount; i++) {
+            Album album = new Album(string(strings, readVarint(in)));
+            if (version != UNTIMED_VERSION) {
+                album.setLastModified(in.readLong());
+            }
+            int photoCount = readVarint(in);
+            for (int p = 0; p < photoCount; p++) {
+                int index = readVarint(in);
+                if (index >= photos.length) {
+                    throw new IOException("Photo index out of range: " + index);
+                }
+                album.addPhoto(photos[index]);
+            }
+            albums.add(album);
+        }
+        if (in.read() != -1) {
+            throw new IOException("Unexpected data after snapshot");
+        }
+
+        return new Snapshot(albums, generation);
+    }
+
+    /**
+     * Reads the length-prefixed payload and checks it against its CRC32.
+     */
+    private static byte[] readPayload(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid snapshot length " + length);
+        }
+        // Copied in chunks, so a damaged length fails at the end of the file instead of allocating it
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(Math.min(length, COPY_BUFFER_SIZE));
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int remaining = length;
+        while (remaining > 0) {
+            int count = in.read(buffer, 0, Math.min(remaining, buffer.length));
+            if (count < 0) {
+                throw new IOException("Snapshot is truncated");
+            }
+            payload.write(buffer, 0, count);
+            remaining -= count;
+        }
+
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+        return bytes;
+    }
+
+    private static String string(String[] strings, int id) throws IOException {
+        if (id >= strings.length) {
+            throw new IOException("String id out of range: " + id);
+        }
+        return strings[id];
+    }
+
+    static void writeVarint(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Assigns ids to strings in first-use order.
+     */
+    private static final class StringTable {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+
+        int idOf(String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = strings.size();
+                ids.put(value, id);
+                strings.add(value);
+            }
+            return id;
+        }
+
+        void writeTo(DataOutput out) throws IOException {
+            writeVarint(out, strings.size());
+            for (String value : strings) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+}
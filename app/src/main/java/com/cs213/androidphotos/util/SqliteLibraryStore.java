@@ -0,0 +1,574 @@
+package com.cs213.androidphotos.util;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.cs213.androidphotos.model.Album;
+import com.cs213.androidphotos.model.Photo;
+import com.cs213.androidphotos.model.Tag;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores the album data in a SQLite database.
+ * <p>
+ * Albums, photos, album membership and tags each have a table, so every
+ * {@link Mutation} is applied as a few single-row inserts, updates or deletes
+ * instead of being journaled and later compacted. Tags are indexed by
+ * (type, lower-cased value) and photos by path. Paths are unique, so a photo
+ * shared by several albums is stored once, with one set of tags, and keeps
+ * its identity when loaded.
+ * <p>
+ * The first time the database is opened, data saved by the file-based
+ * {@link AlbumShardStore} (including the older snapshot and Java serialization
+ * files) is migrated into it and the old files are deleted.
+ * <p>
+ * All methods are called from the AppDataManager writer thread.
+ */
+public class SqliteLibraryStore implements LibraryStore {
+    private static final String TAG = "SqliteLibraryStore";
+    private static final String DATABASE_NAME = "photos.db";
+    private static final int DATABASE_VERSION = 2;
+    private static final int UNSHARED_PHOTOS_VERSION = 1;
+
+    private final DatabaseHelper helper;
+    private final AlbumShardStore legacyStore;
+    private boolean migrated;
+
+    /**
+     * Albums copied for a checkpoint, so the copy can be written after the
+     * albums are unlocked.
+     */
+    private static final class SqlCheckpoint implements Checkpoint {
+        private final List<String> albumNames;
+        private final List<AlbumRecord> records;
+        private final Set<Album> written;
+
+        private SqlCheckpoint(List<String> albumNames, List<AlbumRecord> records, Set<Album> written) {
+            this.albumNames = albumNames;
+            this.records = records;
+            this.written = written;
+        }
+
+        @Override
+        public Set<Album> getWrittenAlbums() {
+            return written;
+        }
+    }
+
+    private static final class AlbumRecord {
+        private final String name;
+        private final long lastModified;
+        private final List<PhotoRecord> photos = new ArrayList<>();
+
+        private AlbumRecord(String name, long lastModified) {
+            this.name = name;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final class PhotoRecord {
+        private final String path;
+        private final List<String[]> tags = new ArrayList<>();
+
+        private PhotoRecord(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * Creates the schema and enables foreign keys.
+     */
+    private static final class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            db.setForeignKeyConstraintsEnabled(true);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE albums ("
+                    + "id INTEGER PRIMARY KEY, "
+                    + "name TEXT NOT NULL UNIQUE, "
+                    + "position INTEGER NOT NULL, "
+                    + "last_modified INTEGER NOT NULL DEFAULT 0)");
+            db.execSQL("CREATE TABLE photos ("
+                    + "id INTEGER PRIMARY KEY, "
+                    + "path TEXT NOT NULL)");
+            db.execSQL("CREATE UNIQUE INDEX photos_path ON photos (path)");
+            db.execSQL("CREATE TABLE album_photos ("
+                    + "album_id INTEGER NOT NULL REFERENCES albums (id) ON DELETE CASCADE, "
+                    + "photo_id INTEGER NOT NULL REFERENCES photos (id) ON DELETE CASCADE, "
+                    + "position INTEGER NOT NULL, "
+                    + "PRIMARY KEY (album_id, photo_id))");
+            db.execSQL("CREATE INDEX album_photos_order ON album_photos (album_id, position)");
+            db.execSQL("CREATE INDEX album_photos_photo ON album_photos (photo_id)");
+            db.execSQL("CREATE TABLE tags ("
+                    + "photo_id INTEGER NOT NULL REFERENCES photos (id) ON DELETE CASCADE, "
+                    + "type TEXT NOT NULL, "
+                    + "value TEXT NOT NULL, "
+                    + "norm_value TEXT NOT NULL, "
+                    + "position INTEGER NOT NULL, "
+                    + "PRIMARY KEY (photo_id, type, norm_value))");
+            db.execSQL("CREATE INDEX tags_type_value ON tags (type, norm_value)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion <= UNSHARED_PHOTOS_VERSION) {
+                mergeDuplicatePhotos(db);
+            }
+        }
+
+        /**
+         * Version 1 could store one file as several photos with separate tags.
+         * Merges them into the oldest row, with the union of their tags and
+         * album memberships, and makes paths unique.
+         */
+        private void mergeDuplicatePhotos(SQLiteDatabase db) {
+            db.execSQL("CREATE TEMP TABLE photo_merges AS "
+                    + "SELECT photos.id AS old_id, kept.id AS new_id FROM photos "
+                    + "JOIN (SELECT path, MIN(id) AS id FROM photos GROUP BY path) AS kept "
+                    + "ON photos.path = kept.path WHERE photos.id <> kept.id");
+            db.execSQL("INSERT OR IGNORE INTO album_photos (album_id, photo_id, position) "
+                    + "SELECT album_id, new_id, position FROM album_photos "
+                    + "JOIN photo_merges ON photo_id = old_id");
+            db.execSQL("INSERT OR IGNORE INTO tags (photo_id, type, value, norm_value, position) "
+                    + "SELECT new_id, type, value, norm_value, position FROM tags "
+                    + "JOIN photo_merges ON photo_id = old_id");
+            // Cascades to the old rows' memberships and tags
+            db.execSQL("DELETE FROM photos WHERE id IN (SELECT old_id FROM photo_merges)");
+            db.execSQL("DROP TABLE photo_merges");
+            db.execSQL("DROP INDEX photos_path");
+            db.execSQL("CREATE UNIQUE INDEX photos_path ON photos (path)");
+        }
+    }
+
+    /**
+     * Creates a store backed by the app's database.
+     *
+     * @param context application context
+     */
+    public SqliteLibraryStore(Context context) {
+        this.helper = new DatabaseHelper(context);
+        this.legacyStore = new AlbumShardStore(context.getFilesDir());
+    }
+
+    /**
+     * Loads every album from the database. If the database is empty and there
+     * is file-based data, that is loaded instead and
+     * {@link #needsFullCheckpoint()} is then true so it gets written to the database.
+     *
+     * @throws IOException if the database or the files cannot be read
+     */
+    @Override
+    public List<Album> load(Set<Album> changed) throws IOException {
+        List<Album> albums;
+        try {
+            albums = loadDatabase(helper.getWritableDatabase());
+        } catch (SQLException e) {
+            // A checkpoint over an empty album list would delete every row
+            throw new IOException("Error loading database: " + e.getMessage(), e);
+        }
+
+        if (albums.isEmpty() && legacyStore.hasData()) {
+            albums = legacyStore.load(changed);
+            migrated = true;
+            Log.d(TAG, "Migrating " + albums.size() + " albums from files");
+        }
+        return albums;
+    }
+
+    private List<Album> loadDatabase(SQLiteDatabase db) {
+        List<Album> albums = new ArrayList<>();
+        Map<Long, Album> albumsById = new HashMap<>();
+        Map<Long, Photo> photosById = new HashMap<>();
+
+        try (Cursor cursor = db.rawQuery(
+                "SELECT id, name, last_modified FROM albums ORDER BY position", null)) {
+            while (cursor.moveToNext()) {
+                Album album = new Album(cursor.getString(1));
+                album.setLastModified(cursor.getLong(2));
+                albumsById.put(cursor.getLong(0), album);
+                albums.add(album);
+            }
+        }
+
+        try (Cursor cursor = db.rawQuery("SELECT id, path FROM photos", null)) {
+            while (cursor.moveToNext()) {
+                photosById.put(cursor.getLong(0), new Photo(cursor.getString(1)));
+            }
+        }
+
+        try (Cursor cursor = db.rawQuery(
+                "SELECT photo_id, type, value FROM tags ORDER BY photo_id, position", null)) {
+            while (cursor.moveToNext()) {
+                Photo photo = photosById.get(cursor.getLong(0));
+                String type = cursor.getString(1);
+                if (photo != null && Tag.isValidType(type)) {
+                    photo.getTags().add(Tag.of(type, cursor.getString(2)));
+                }
+            }
+        }
+
+        try (Cursor cursor = db.rawQuery(
+                "SELECT album_id, photo_id FROM album_photos ORDER BY album_id, position", null)) {
+            while (cursor.moveToNext()) {
+                Album album = albumsById.get(cursor.getLong(0));
+                Photo photo = photosById.get(cursor.getLong(1));
+                if (album != null && photo != null) {
+                    album.addPhoto(photo);
+                }
+            }
+        }
+
+        Log.d(TAG, "Loaded " + albums.size() + " albums, " + photosById.size() + " photos");
+        return albums;
+    }
+
+    /**
+     * Checks whether the data was loaded from files and must be written to
+     * the database in full.
+     *
+     * @return true if the next checkpoint must include every album
+     */
+    @Override
+    public boolean needsFullCheckpoint() {
+        return migrated;
+    }
+
+    /**
+     * Mutations are written straight to their rows, so there is never a
+     * journal to compact.
+     *
+     * @return false
+     */
+    @Override
+    public boolean needsCheckpoint() {
+        return false;
+    }
+
+    /**
+     * Applies mutations to the database in one transaction.
+     *
+     * @param mutations the mutations to apply, in order
+     * @throws IOException if the database cannot be written; none of the mutations are applied
+     */
+    @Override
+    public void append(List<Mutation> mutations) throws IOException {
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Mutation mutation : mutations) {
+                    apply(db, mutation);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Error writing database", e);
+        }
+    }
+
+    /**
+     * Applies one mutation, with the same checks as {@link Mutation#applyTo},
+     * so a mutation that no longer applies is skipped.
+     */
+    private void apply(SQLiteDatabase db, Mutation mutation) {
+        String name = mutation.getAlbum();
+        String other = mutation.getOtherAlbum();
+        String path = mutation.getPath();
+        long time = mutation.getTime();
+        long albumId = albumId(db, name);
+
+        switch (mutation.getType()) {
+            case ALBUM_CREATED:
+                if (albumId < 0) {
+                    db.execSQL("INSERT INTO albums (name, position, last_modified) "
+                            + "VALUES (?, (SELECT IFNULL(MAX(position), -1) + 1 FROM albums), ?)",
+                            new Object[]{name, time});
+                }
+                break;
+
+            case ALBUM_RENAMED:
+                if (albumId >= 0 && albumId(db, other) < 0) {
+                    db.execSQL("UPDATE albums SET name = ?, last_modified = ? WHERE id = ?",
+                            new Object[]{other, time, albumId});
+                }
+                break;
+
+            case ALBUM_DELETED:
+                if (albumId >= 0) {
+                    db.execSQL("DELETE FROM albums WHERE id = ?", new Object[]{albumId});
+                    deleteOrphanPhotos(db);
+                }
+                break;
+
+            case PHOTO_ADDED: {
+                if (albumId < 0 || photoId(db, albumId, path) >= 0) {
+                    break;
+                }
+                // Shared with any album already holding the file, so the source album is not needed
+                insertMembership(db, albumId, insertPhoto(db, path));
+                touch(db, albumId, time);
+                break;
+            }
+
+            case PHOTO_REMOVED: {
+                long photoId = photoId(db, albumId, path);
+                if (photoId >= 0) {
+                    deleteMembership(db, albumId, photoId);
+                    touch(db, albumId, time);
+                }
+                break;
+            }
+
+            case PHOTO_MOVED: {
+                long destinationId = albumId(db, other);
+                long photoId = photoId(db, albumId, path);
+                if (photoId < 0 || destinationId < 0 || destinationId == albumId) {
+                    break;
+                }
+                if (photoId(db, destinationId, path) >= 0) {
+                    // The in-memory move failed and put the photo back at the end of the album
+                    db.execSQL("DELETE FROM album_photos WHERE album_id = ? AND photo_id = ?",
+                            new Object[]{albumId, photoId});
+                    insertMembership(db, albumId, photoId);
+                    break;
+                }
+                db.execSQL("DELETE FROM album_photos WHERE album_id = ? AND photo_id = ?",
+                        new Object[]{albumId, photoId});
+                insertMembership(db, destinationId, photoId);
+                touch(db, albumId, time);
+                touch(db, destinationId, time);
+                break;
+            }
+
+            case TAG_ADDED: {
+                // Journaled once per album holding the photo; the row is shared, so later ones only touch the album
+                long photoId = photoId(db, albumId, path);
+                if (photoId >= 0 && Tag.isValidType(mutation.getTagType())) {
+                    insertTag(db, photoId, mutation.getTagType(), mutation.getTagValue());
+                    touch(db, albumId, time);
+                }
+                break;
+            }
+
+            case TAG_REMOVED: {
+                long photoId = photoId(db, albumId, path);
+                if (photoId >= 0 && Tag.isValidType(mutation.getTagType())) {
+                    db.execSQL("DELETE FROM tags WHERE photo_id = ? AND type = ? AND norm_value = ?",
+                            new Object[]{photoId, normalize(mutation.getTagType()),
+                                    normalize(mutation.getTagValue())});
+                    touch(db, albumId, time);
+                }
+                break;
+            }
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Copies the changed albums so they can be written after the albums are
+     * unlocked. Photos shared between the copied albums are copied once.
+     */
+    @Override
+    public Checkpoint prepareCheckpoint(List<Album> albums, Set<Album> dirty) {
+        List<String> albumNames = new ArrayList<>(albums.size());
+        List<AlbumRecord> records = new ArrayList<>();
+        Set<Album> written = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<Photo, PhotoRecord> copies = new IdentityHashMap<>();
+
+        for (Album album : albums) {
+            albumNames.add(album.getName());
+            if (!migrated && !dirty.contains(album)) {
+                continue;
+            }
+            AlbumRecord record = new AlbumRecord(album.getName(), album.getLastModified());
+            for (Photo photo : album.getPhotos()) {
+                PhotoRecord photoRecord = copies.get(photo);
+                if (photoRecord == null) {
+                    photoRecord = new PhotoRecord(photo.getFilePath());
+                    for (Tag tag : photo.getTags()) {
+                        photoRecord.tags.add(new String[]{tag.getType(), tag.getValue()});
+                    }
+                    copies.put(photo, photoRecord);
+                }
+                record.photos.add(photoRecord);
+            }
+            records.add(record);
+            written.add(album);
+        }
+        return new SqlCheckpoint(albumNames, records, written);
+    }
+
+    /**
+     * Rewrites the rows of the changed albums, brings the album order up to
+     * date and deletes albums and photos that no longer exist, all in one
+     * transaction. After a migration, the old data files are then deleted.
+     */
+    @Override
+    public void commit(Checkpoint prepared) throws IOException {
+        SqlCheckpoint checkpoint = (SqlCheckpoint) prepared;
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                writeCheckpoint(db, checkpoint);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Error writing database", e);
+        }
+        Log.d(TAG, "Checkpoint wrote " + checkpoint.records.size()
+                + " of " + checkpoint.albumNames.size() + " albums");
+
+        if (migrated) {
+            // The data is now safely stored in the database
+            legacyStore.deleteAllFiles();
+            migrated = false;
+        }
+    }
+
+    private void writeCheckpoint(SQLiteDatabase db, SqlCheckpoint checkpoint) {
+        // Albums left with a negative position at the end no longer exist
+        db.execSQL("UPDATE albums SET position = -1");
+        for (int i = 0; i < checkpoint.albumNames.size(); i++) {
+            db.execSQL("UPDATE albums SET position = ? WHERE name = ?",
+                    new Object[]{i, checkpoint.albumNames.get(i)});
+        }
+
+        Map<PhotoRecord, Long> photoIds = new IdentityHashMap<>();
+        for (AlbumRecord record : checkpoint.records) {
+            long albumId = albumId(db, record.name);
+            if (albumId >= 0) {
+                db.execSQL("DELETE FROM album_photos WHERE album_id = ?", new Object[]{albumId});
+                db.execSQL("UPDATE albums SET last_modified = ? WHERE id = ?",
+                        new Object[]{record.lastModified, albumId});
+            } else {
+                db.execSQL("INSERT INTO albums (name, position, last_modified) VALUES (?, ?, ?)",
+                        new Object[]{record.name, checkpoint.albumNames.indexOf(record.name),
+                                record.lastModified});
+                albumId = albumId(db, record.name);
+            }
+
+            for (int i = 0; i < record.photos.size(); i++) {
+                PhotoRecord photo = record.photos.get(i);
+                Long photoId = photoIds.get(photo);
+                if (photoId == null) {
+                    // The row may be shared with unchanged albums, so it is updated in place
+                    photoId = insertPhoto(db, photo.path);
+                    db.execSQL("DELETE FROM tags WHERE photo_id = ?", new Object[]{photoId});
+                    for (String[] tag : photo.tags) {
+                        insertTag(db, photoId, tag[0], tag[1]);
+                    }
+                    photoIds.put(photo, photoId);
+                }
+                db.execSQL("INSERT INTO album_photos (album_id, photo_id, position) VALUES (?, ?, ?)",
+                        new Object[]{albumId, photoId, i});
+            }
+        }
+
+        db.execSQL("DELETE FROM albums WHERE position < 0");
+        deleteOrphanPhotos(db);
+    }
+
+    private static long albumId(SQLiteDatabase db, String name) {
+        return queryId(db, "SELECT id FROM albums WHERE name = ?", name);
+    }
+
+    /**
+     * Finds a photo in an album by path, using the path index.
+     */
+    private static long photoId(SQLiteDatabase db, long albumId, String path) {
+        if (albumId < 0) {
+            return -1;
+        }
+        return queryId(db, "SELECT photo_id FROM album_photos WHERE album_id = ? "
+                + "AND photo_id IN (SELECT id FROM photos WHERE path = ?)", Long.toString(albumId), path);
+    }
+
+    private static long queryId(SQLiteDatabase db, String sql, String... args) {
+        try (Cursor cursor = db.rawQuery(sql, args)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        }
+    }
+
+    /**
+     * Finds the photo with a path, inserting it if there is none.
+     */
+    private static long insertPhoto(SQLiteDatabase db, String path) {
+        db.execSQL("INSERT OR IGNORE INTO photos (path) VALUES (?)", new Object[]{path});
+        return queryId(db, "SELECT id FROM photos WHERE path = ?", path);
+    }
+
+    private static void insertMembership(SQLiteDatabase db, long albumId, long photoId) {
+        db.execSQL("INSERT INTO album_photos (album_id, photo_id, position) "
+                + "VALUES (?, ?, (SELECT IFNULL(MAX(position), -1) + 1 FROM album_photos WHERE album_id = ?))",
+                new Object[]{albumId, photoId, albumId});
+    }
+
+    private static void deleteMembership(SQLiteDatabase db, long albumId, long photoId) {
+        db.execSQL("DELETE FROM album_photos WHERE album_id = ? AND photo_id = ?",
+                new Object[]{albumId, photoId});
+        db.execSQL("DELETE FROM photos WHERE id = ? "
+                + "AND NOT EXISTS (SELECT 1 FROM album_photos WHERE photo_id = ?)",
+                new Object[]{photoId, photoId});
+    }
+
+    /**
+     * Adds a tag unless the photo already has one with the same type and value,
+     * ignoring case.
+     *
+     * @return true if the tag was added
+     */
+    private static boolean insertTag(SQLiteDatabase db, long photoId, String type, String value) {
+        String normType = normalize(type);
+        String normValue = normalize(value);
+        if (queryId(db, "SELECT photo_id FROM tags WHERE photo_id = ? AND type = ? AND norm_value = ?",
+                Long.toString(photoId), normType, normValue) >= 0) {
+            return false;
+        }
+        db.execSQL("INSERT INTO tags (photo_id, type, value, norm_value, position) "
+                + "VALUES (?, ?, ?, ?, (SELECT IFNULL(MAX(position), -1) + 1 FROM tags WHERE photo_id = ?))",
+                new Object[]{photoId, normType, value, normValue, photoId});
+        return true;
+    }
+
+    private static void deleteOrphanPhotos(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM photos WHERE id NOT IN (SELECT photo_id FROM album_photos)");
+    }
+
+    private static void touch(SQLiteDatabase db, long albumId, long time) {
+        if (time > 0) {
+            db.execSQL("UPDATE albums SET last_modified = ? WHERE id = ?", new Object[]{time, albumId});
+        }
+    }
+
+    private static String normalize(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+}
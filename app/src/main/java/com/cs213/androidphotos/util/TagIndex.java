@@ -0,0 +1,289 @@
+package com.cs213.androidphotos.util;
+
+import com.cs213.androidphotos.model.Album;
+import com.cs213.androidphotos.model.Photo;
+import com.cs213.androidphotos.model.PhotoRegistry;
+import com.cs213.androidphotos.model.Tag;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Inverted index from tag type and lower-cased tag value to the photos
+ * carrying that tag, so tag searches cost time proportional to the number of
+ * matching values and photos rather than the size of the library.
+ * <p>
+ * A photo is indexed while it belongs to at least one album, as tracked by
+ * the {@link PhotoRegistry}. Postings are {@link RoaringBitmap}s of the
+ * registry's dense photo ids, so boolean queries are bitmap intersections
+ * and unions. Values of each type are kept
+ * sorted, so a prefix query visits only the matching range, and each type
+ * also has a {@link TagValueTrie} counting the photos per value, for ranked
+ * autocomplete.
+ * <p>
+ * Queries may run concurrently under AppDataManager's read lock; updates
+ * need its write lock.
+ */
+public class TagIndex {
+
+    /**
+     * The ids of the photos carrying one tag value.
+     */
+    private static final class Posting {
+        private final String value;
+        private final RoaringBitmap photos = new RoaringBitmap();
+
+        private Posting(String value) {
+            this.value = value;
+        }
+    }
+
+    private final Map<String, TreeMap<String, Posting>> postingsByType = new HashMap<>();
+    private final Map<String, TagValueTrie> triesByType = new HashMap<>();
+    private final List<Photo> photosById = new ArrayList<>();
+    private final RoaringBitmap allIds = new RoaringBitmap();
+    private int count;
+
+    /**
+     * Replaces the contents of the index with the photos of the given albums,
+     * which must already be registered.
+     *
+     * @param albums every album
+     */
+    public void rebuild(List<Album> albums) {
+        postingsByType.clear();
+        triesByType.clear();
+        photosById.clear();
+        allIds.clear();
+        count = 0;
+        for (Album album : albums) {
+            for (Photo photo : album.getPhotos()) {
+                addPhoto(photo);
+            }
+        }
+    }
+
+    /**
+     * Indexes a photo that has been added to the library. Does nothing if
+     * the photo is already indexed.
+     *
+     * @param photo the registered photo
+     */
+    public void addPhoto(Photo photo) {
+        int id = photo.getId();
+        if (!allIds.add(id)) {
+            return;
+        }
+        while (photosById.size() <= id) {
+            photosById.add(null);
+        }
+        photosById.set(id, photo);
+        count++;
+        for (Tag tag : photo.getTags()) {
+            index(id, tag);
+        }
+    }
+
+    /**
+     * Removes a photo that is no longer in any album.
+     *
+     * @param photo the photo
+     */
+    public void removePhoto(Photo photo) {
+        int id = photo.getId();
+        if (!isIndexed(photo)) {
+            return;
+        }
+        for (Tag tag : photo.getTags()) {
+            unindex(id, tag);
+        }
+        photosById.set(id, null);
+        allIds.remove(id);
+        count--;
+    }
+
+    /**
+     * Records a tag being added to a photo.
+     *
+     * @param photo the photo
+     * @param tag the added tag
+     */
+    public void addTag(Photo photo, Tag tag) {
+        if (isIndexed(photo)) {
+            index(photo.getId(), tag);
+        }
+    }
+
+    /**
+     * Records a tag being removed from a photo.
+     *
+     * @param photo the photo
+     * @param tag the removed tag
+     */
+    public void removeTag(Photo photo, Tag tag) {
+        if (isIndexed(photo) && !photo.hasTag(tag)) {
+            unindex(photo.getId(), tag);
+        }
+    }
+
+    private boolean isIndexed(Photo photo) {
+        int id = photo.getId();
+        return id < photosById.size() && photosById.get(id) == photo;
+    }
+
+    /**
+     * Finds the photos with a tag of the given type whose value starts with a
+     * prefix, ignoring case, by taking the union of the postings of every
+     * matching value.
+     *
+     * @param type the tag type
+     * @param valuePrefix the value prefix; empty matches every value
+     * @return the ids of the matching photos, as a new bitmap the caller may modify
+     */
+    public RoaringBitmap match(String type, String valuePrefix) {
+        RoaringBitmap results = new RoaringBitmap();
+        for (Posting posting : range(type, valuePrefix)) {
+            results.orInPlace(posting.photos);
+        }
+        return results;
+    }
+
+    /**
+     * Estimates the number of photos {@link #match(String, String)} would
+     * return, from the sizes of the matching postings. Photos with several
+     * matching values are counted once per value.
+     *
+     * @param type the tag type
+     * @param valuePrefix the value prefix
+     * @return the estimated number of matches
+     */
+    public int estimate(String type, String valuePrefix) {
+        long total = 0;
+        for (Posting posting : range(type, valuePrefix)) {
+            total += posting.photos.cardinality();
+            if (total >= count) {
+                return count;
+            }
+        }
+        return (int) total;
+    }
+
+    /**
+     * Gets the ids of every indexed photo.
+     *
+     * @return the ids, as a new bitmap the caller may modify
+     */
+    public RoaringBitmap all() {
+        return allIds.copy();
+    }
+
+    /**
+     * Gets the number of indexed photos.
+     *
+     * @return the number of photos in at least one album
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Gets the photos with the given ids.
+     *
+     * @param ids photo ids returned by {@link #match(String, String)} or {@link #all()}
+     * @return the photos, in id order
+     */
+    public List<Photo> photos(RoaringBitmap ids) {
+        List<Photo> photos = new ArrayList<>(ids.cardinality());
+        ids.forEach(id -> photos.add(photosById.get(id)));
+        return photos;
+    }
+
+    /**
+     * Gets the photo with the given id.
+     *
+     * @param id a photo id returned by {@link #match(String, String)} or {@link #all()}
+     * @return the photo, or null if the id is not in use
+     */
+    public Photo photo(int id) {
+        return id < photosById.size() ? photosById.get(id) : null;
+    }
+
+    /**
+     * Gets the most used values of the given tag type that start with a
+     * prefix, ignoring case. Values differing only in case are returned once,
+     * as first indexed.
+     *
+     * @param type the tag type
+     * @param prefix the value prefix; empty matches every value
+     * @param limit the maximum number of values to return
+     * @return the matching values, used by the most photos first
+     */
+    public List<String> suggestValues(String type, String prefix, int limit) {
+        TagValueTrie trie = triesByType.get(normalize(type));
+        if (trie == null) {
+            return new ArrayList<>();
+        }
+        return trie.top(normalize(prefix), limit);
+    }
+
+    private Iterable<Posting> range(String type, String prefix) {
+        TreeMap<String, Posting> postings = postingsByType.get(normalize(type));
+        if (postings == null) {
+            return Collections.emptyList();
+        }
+        String from = normalize(prefix);
+        if (from.isEmpty()) {
+            return postings.values();
+        }
+        // Every key starting with the prefix sorts before the prefix followed by the highest char
+        return postings.subMap(from, true, from + Character.MAX_VALUE, false).values();
+    }
+
+    private void index(int id, Tag tag) {
+        String type = tag.getType();
+        TreeMap<String, Posting> postings = postingsByType.get(type);
+        if (postings == null) {
+            postings = new TreeMap<>();
+            postingsByType.put(type, postings);
+        }
+        String key = tag.getNormalizedValue();
+        Posting posting = postings.get(key);
+        if (posting == null) {
+            posting = new Posting(tag.getValue());
+            postings.put(key, posting);
+        }
+        if (posting.photos.add(id)) {
+            TagValueTrie trie = triesByType.get(type);
+            if (trie == null) {
+                trie = new TagValueTrie();
+                triesByType.put(type, trie);
+            }
+            trie.adjust(key, posting.value, 1);
+        }
+    }
+
+    private void unindex(int id, Tag tag) {
+        TreeMap<String, Posting> postings = postingsByType.get(tag.getType());
+        if (postings == null) {
+            return;
+        }
+        String key = tag.getNormalizedValue();
+        Posting posting = postings.get(key);
+        if (posting == null || !posting.photos.remove(id)) {
+            return;
+        }
+        triesByType.get(tag.getType()).adjust(key, posting.value, -1);
+        if (posting.photos.isEmpty()) {
+            postings.remove(key);
+        }
+    }
+
+    private static String normalize(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,383 @@
+package com.cs213.androidphotos.util;
+
+import com.cs213.androidphotos.model.Tag;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A boolean expression over tag predicates, such as
+ * {@code person=alice AND person=bob AND NOT location=office}.
+ * <p>
+ * A predicate {@code type=value} matches photos with a tag of that type whose
+ * value starts with the given prefix, ignoring case, like the other tag
+ * searches. Expressions combine predicates with AND, OR and NOT (which bind
+ * in that order, loosest first) and parentheses. Values containing spaces or
+ * parentheses can be double-quoted.
+ * <p>
+ * Queries are evaluated against a {@link TagIndex}. An AND evaluates its
+ * most selective operand first, as estimated from posting sizes, and stops as
+ * soon as the intersection is empty; NOT operands of an AND are subtracted
+ * from the intersection rather than computed against every photo.
+ */
+public abstract class TagQuery {
+
+    private TagQuery() {
+    }
+
+    /**
+     * Creates a predicate matching a tag type and value prefix.
+     *
+     * @param type the tag type
+     * @param valuePrefix the value prefix; empty matches any value of the type
+     * @return the predicate
+     */
+    public static TagQuery tag(String type, String valuePrefix) {
+        return new Predicate(type.toLowerCase(Locale.ROOT), valuePrefix.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Creates a query matching photos that match every operand.
+     *
+     * @param operands the operands
+     * @return the query
+     */
+    public static TagQuery and(TagQuery... operands) {
+        return new And(Arrays.asList(operands));
+    }
+
+    /**
+     * Creates a query matching photos that match any operand.
+     *
+     * @param operands the operands
+     * @return the query
+     */
+    public static TagQuery or(TagQuery... operands) {
+        return new Or(Arrays.asList(operands));
+    }
+
+    /**
+     * Creates a query matching photos that do not match the operand.
+     *
+     * @param operand the operand
+     * @return the query
+     */
+    public static TagQuery not(TagQuery operand) {
+        return new Not(operand);
+    }
+
+    /**
+     * Parses a query expression.
+     *
+     * @param text the expression, for example {@code person=al AND (location=home OR location=park)}
+     * @return the parsed query
+     * @throws ParseException if the expression is malformed or uses an unknown tag type
+     */
+    public static TagQuery parse(String text) throws ParseException {
+        Parser parser = new Parser(text);
+        TagQuery query = parser.parseOr();
+        parser.skipSpaces();
+        if (parser.pos < text.length()) {
+            throw new ParseException("Unexpected '" + text.charAt(parser.pos) + "'", parser.pos);
+        }
+        return query;
+    }
+
+    /**
+     * Returns the query in a normalized form, with lower-cased values and
+     * explicit grouping. Queries that match the same photos by the same
+     * structure have the same string, so it can be used as a cache key.
+     *
+     * @return the normalized query
+     */
+    @Override
+    public abstract String toString();
+
+    /**
+     * Finds the ids of the matching photos.
+     *
+     * @param index the tag index to query
+     * @return the ids, as a new bitmap the caller may modify
+     */
+    abstract RoaringBitmap evaluate(TagIndex index);
+
+    /**
+     * Estimates how many photos match, without evaluating the query.
+     * Used to order the operands of an AND.
+     */
+    abstract int estimate(TagIndex index);
+
+    /**
+     * Matches photos with a tag of a type whose value starts with a prefix.
+     */
+    private static final class Predicate extends TagQuery {
+        private final String type;
+        private final String valuePrefix;
+
+        Predicate(String type, String valuePrefix) {
+            this.type = type;
+            this.valuePrefix = valuePrefix;
+        }
+
+        @Override
+        RoaringBitmap evaluate(TagIndex index) {
+            return index.match(type, valuePrefix);
+        }
+
+        @Override
+        int estimate(TagIndex index) {
+            return index.estimate(type, valuePrefix);
+        }
+
+        @Override
+        public String toString() {
+            return type + "=\"" + valuePrefix + "\"";
+        }
+    }
+
+    private static final class And extends TagQuery {
+        private final List<TagQuery> operands;
+
+        And(List<TagQuery> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        RoaringBitmap evaluate(TagIndex index) {
+            List<TagQuery> included = new ArrayList<>();
+            List<TagQuery> excluded = new ArrayList<>();
+            for (TagQuery operand : operands) {
+                if (operand instanceof Not) {
+                    excluded.add(((Not) operand).operand);
+                } else {
+                    included.add(operand);
+                }
+            }
+
+            // Most selective first, so the running intersection is small from the start
+            List<int[]> order = new ArrayList<>(included.size());
+            for (int i = 0; i < included.size(); i++) {
+                int estimate = included.get(i).estimate(index);
+                if (estimate == 0) {
+                    return new RoaringBitmap();
+                }
+                order.add(new int[]{estimate, i});
+            }
+            Collections.sort(order, (a, b) -> Integer.compare(a[0], b[0]));
+
+            RoaringBitmap result = null;
+            for (int[] entry : order) {
+                RoaringBitmap matches = included.get(entry[1]).evaluate(index);
+                result = result == null ? matches : RoaringBitmap.and(result, matches);
+                if (result.isEmpty()) {
+                    return result;
+                }
+            }
+            if (result == null) {
+                result = index.all();
+            }
+            for (TagQuery operand : excluded) {
+                result = RoaringBitmap.andNot(result, operand.evaluate(index));
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        int estimate(TagIndex index) {
+            int estimate = Integer.MAX_VALUE;
+            for (TagQuery operand : operands) {
+                estimate = Math.min(estimate, operand.estimate(index));
+            }
+            return estimate;
+        }
+
+        @Override
+        public String toString() {
+            return join(operands, " AND ");
+        }
+    }
+
+    private static final class Or extends TagQuery {
+        private final List<TagQuery> operands;
+
+        Or(List<TagQuery> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        RoaringBitmap evaluate(TagIndex index) {
+            RoaringBitmap result = new RoaringBitmap();
+            for (TagQuery operand : operands) {
+                result.orInPlace(operand.evaluate(index));
+            }
+            return result;
+        }
+
+        @Override
+        int estimate(TagIndex index) {
+            long estimate = 0;
+            for (TagQuery operand : operands) {
+                estimate += operand.estimate(index);
+            }
+            return (int) Math.min(estimate, index.size());
+        }
+
+        @Override
+        public String toString() {
+            return join(operands, " OR ");
+        }
+    }
+
+    private static final class Not extends TagQuery {
+        private final TagQuery operand;
+
+        Not(TagQuery operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        RoaringBitmap evaluate(TagIndex index) {
+            return RoaringBitmap.andNot(index.all(), operand.evaluate(index));
+        }
+
+        @Override
+        int estimate(TagIndex index) {
+            return index.size();
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + operand;
+        }
+    }
+
+    private static String join(List<TagQuery> operands, String separator) {
+        StringBuilder builder = new StringBuilder("(");
+        for (int i = 0; i < operands.size(); i++) {
+            if (i > 0) {
+                builder.append(separator);
+            }
+            builder.append(operands.get(i));
+        }
+        return builder.append(')').toString();
+    }
+
+    /**
+     * Recursive descent parser for query expressions.
+     */
+    private static final class Parser {
+        private final String text;
+        private int pos;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        TagQuery parseOr() throws ParseException {
+            List<TagQuery> operands = new ArrayList<>();
+            operands.add(parseAnd());
+            while (keyword("OR")) {
+                operands.add(parseAnd());
+            }
+            return operands.size() == 1 ? operands.get(0) : new Or(operands);
+        }
+
+        TagQuery parseAnd() throws ParseException {
+            List<TagQuery> operands = new ArrayList<>();
+            operands.add(parseUnary());
+            while (keyword("AND")) {
+                operands.add(parseUnary());
+            }
+            return operands.size() == 1 ? operands.get(0) : new And(operands);
+        }
+
+        TagQuery parseUnary() throws ParseException {
+            if (keyword("NOT")) {
+                return new Not(parseUnary());
+            }
+            skipSpaces();
+            if (pos < text.length() && text.charAt(pos) == '(') {
+                pos++;
+                TagQuery query = parseOr();
+                skipSpaces();
+                if (pos >= text.length() || text.charAt(pos) != ')') {
+                    throw new ParseException("Missing ')'", pos);
+                }
+                pos++;
+                return query;
+            }
+            return parsePredicate();
+        }
+
+        TagQuery parsePredicate() throws ParseException {
+            int start = pos;
+            String type = word();
+            if (type.isEmpty()) {
+                throw new ParseException("Expected a tag such as person=name", pos);
+            }
+            if (!Tag.isValidType(type)) {
+                throw new ParseException("Unknown tag type '" + type + "'", start);
+            }
+            skipSpaces();
+            if (pos >= text.length() || text.charAt(pos) != '=') {
+                throw new ParseException("Expected '=' after " + type, pos);
+            }
+            pos++;
+            skipSpaces();
+            return tag(type, value());
+        }
+
+        private String value() throws ParseException {
+            if (pos < text.length() && text.charAt(pos) == '"') {
+                int end = text.indexOf('"', pos + 1);
+                if (end < 0) {
+                    throw new ParseException("Missing closing quote", pos);
+                }
+                String value = text.substring(pos + 1, end);
+                pos = end + 1;
+                return value;
+            }
+            return word();
+        }
+
+        private String word() {
+            skipSpaces();
+            int start = pos;
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (Character.isWhitespace(c) || c == '(' || c == ')' || c == '=' || c == '"') {
+                    break;
+                }
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        /**
+         * Consumes a keyword, ignoring case, if it is next in the input.
+         */
+        private boolean keyword(String keyword) {
+            skipSpaces();
+            int end = pos + keyword.length();
+            if (text.regionMatches(true, pos, keyword, 0, keyword.length())
+                    && (end == text.length() || Character.isWhitespace(text.charAt(end)) || text.charAt(end) == '(')) {
+                pos = end;
+                return true;
+            }
+            return false;
+        }
+
+        void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.cs213.androidphotos.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Trie of the distinct values of one tag type, each with a usage count, for
+ * ranked autocomplete.
+ * <p>
+ * Every node caches the {@link #CACHED_COUNT} most used values below it.
+ * Changing a count clears the caches on the value's path only; a cache is
+ * rebuilt on the next query from its children's caches. A suggestion query
+ * therefore costs the length of the prefix plus, at worst, merging a few
+ * short lists, however many values there are.
+ * <p>
+ * Queries fill the caches lazily, so both queries and updates synchronize on
+ * the trie; concurrent suggestion lookups run under AppDataManager's read lock.
+ */
+public class TagValueTrie {
+
+    /** Number of top values cached per node. */
+    public static final int CACHED_COUNT = 10;
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static final Comparator<Entry> BY_COUNT = (a, b) -> {
+        if (a.count != b.count) {
+            return Integer.compare(b.count, a.count);
+        }
+        return a.key.compareTo(b.key);
+    };
+
+    /**
+     * A distinct value and the number of photos using it.
+     */
+    private static final class Entry {
+        private final String key;
+        private final String value;
+        private int count;
+
+        private Entry(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class Node {
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        private int childCount;
+        private Entry entry;
+        private List<Entry> top;
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(keys, 0, childCount, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node addChild(char c) {
+            int i = Arrays.binarySearch(keys, 0, childCount, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            i = -i - 1;
+            if (childCount == keys.length) {
+                int capacity = Math.max(2, childCount * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            System.arraycopy(keys, i, keys, i + 1, childCount - i);
+            System.arraycopy(children, i, children, i + 1, childCount - i);
+            Node node = new Node();
+            keys[i] = c;
+            children[i] = node;
+            childCount++;
+            return node;
+        }
+
+        void removeChild(char c) {
+            int i = Arrays.binarySearch(keys, 0, childCount, c);
+            if (i >= 0) {
+                System.arraycopy(keys, i + 1, keys, i, childCount - i - 1);
+                System.arraycopy(children, i + 1, children, i, childCount - i - 1);
+                childCount--;
+                children[childCount] = null;
+            }
+        }
+
+        boolean isEmpty() {
+            return entry == null && childCount == 0;
+        }
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * Changes the usage count of a value, adding it if it is new and removing
+     * it when the count reaches zero.
+     *
+     * @param key the normalized value
+     * @param value the value as first used, returned as the suggestion
+     * @param delta the change in count
+     */
+    public synchronized void adjust(String key, String value, int delta) {
+        Node[] path = new Node[key.length() + 1];
+        Node node = root;
+        path[0] = node;
+        for (int i = 0; i < key.length(); i++) {
+            node = delta > 0 ? node.addChild(key.charAt(i)) : node.child(key.charAt(i));
+            if (node == null) {
+                return;
+            }
+            path[i + 1] = node;
+        }
+
+        if (node.entry == null) {
+            if (delta <= 0) {
+                return;
+            }
+            node.entry = new Entry(key, value);
+        }
+        node.entry.count += delta;
+        if (node.entry.count <= 0) {
+            node.entry = null;
+        }
+
+        for (int i = key.length(); i >= 0; i--) {
+            path[i].top = null;
+            if (i > 0 && path[i].isEmpty()) {
+                path[i - 1].removeChild(key.charAt(i - 1));
+            }
+        }
+    }
+
+    /**
+     * Gets the most used values starting with a prefix.
+     *
+     * @param prefix the normalized prefix; empty matches every value
+     * @param limit the maximum number of values to return
+     * @return the values, most used first, ties in alphabetical order
+     */
+    public synchronized List<String> top(String prefix, int limit) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.child(prefix.charAt(i));
+        }
+        if (node == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        List<Entry> entries;
+        if (limit <= CACHED_COUNT) {
+            entries = topOf(node);
+        } else {
+            entries = new ArrayList<>();
+            collect(node, entries);
+            Collections.sort(entries, BY_COUNT);
+        }
+
+        List<String> values = new ArrayList<>(Math.min(limit, entries.size()));
+        for (int i = 0; i < entries.size() && i < limit; i++) {
+            values.add(entries.get(i).value);
+        }
+        return values;
+    }
+
+    private List<Entry> topOf(Node node) {
+        if (node.top == null) {
+            List<Entry> candidates = new ArrayList<>();
+            if (node.entry != null) {
+                candidates.add(node.entry);
+            }
+            for (int i = 0; i < node.childCount; i++) {
+                candidates.addAll(topOf(node.children[i]));
+            }
+            Collections.sort(candidates, BY_COUNT);
+            node.top = candidates.size() > CACHED_COUNT
+                    ? new ArrayList<>(candidates.subList(0, CACHED_COUNT))
+                    : candidates;
+        }
+        return node.top;
+    }
+
+    private void collect(Node node, List<Entry> entries) {
+        if (node.entry != null) {
+            entries.add(node.entry);
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            collect(node.children[i], entries);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.cs213.androidphotos.util;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.cs213.androidphotos.model.PhotoRegistry;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of generated thumbnails in the app's cache directory, so that after a
+ * restart a grid reads small files instead of decoding every original again.
+ * <p>
+ * Each thumbnail is a WebP file named by a hash of the photo's path, the
+ * version of the source (its size and last-modified time, where known) and
+ * the thumbnail size, so an edited photo gets a new thumbnail and the stale
+ * one ages out. The cache is bounded by total file size and evicts the least
+ * recently used files; a file's modification time records its last use, so
+ * the order survives restarts.
+ * <p>
+ * Thread-safe, as the loader's background threads share it.
+ */
+public class ThumbnailDiskCache {
+    private static final String TAG = "ThumbnailDiskCache";
+    private static final String SUFFIX = ".webp";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int QUALITY = 80;
+
+    private final File directory;
+    private final long maxBytes;
+    // File name -> size in bytes, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private boolean loaded;
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a cache in the given directory, which is created if needed.
+     *
+     * @param directory the directory holding the thumbnails
+     * @param maxBytes the maximum total size of the thumbnail files
+     */
+    public ThumbnailDiskCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Builds the cache key for a thumbnail.
+     *
+     * @param filePath the file path or content URI of the photo
+     * @param version anything that changes when the photo does, or an empty string if unknown
+     * @param width the thumbnail width it was decoded for
+     * @param height the thumbnail height it was decoded for
+     * @return the key
+     */
+    public static String key(String filePath, String version, int width, int height) {
+        String source = PhotoRegistry.normalizePath(filePath) + '|' + version + '|' + width + 'x' + height;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Finds a cached thumbnail and marks it used. The file may be evicted by
+     * another thread before it is read; call {@link #remove(String)} if it
+     * cannot be decoded.
+     *
+     * @param key the key, from {@link #key(String, String, int, int)}
+     * @return the thumbnail file, or null if it is not cached
+     */
+    public File get(String key) {
+        String name = key + SUFFIX;
+        synchronized (this) {
+            load();
+            if (entries.get(name) == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        File file = new File(directory, name);
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Deletes a cached thumbnail, such as one that turned out to be damaged.
+     *
+     * @param key the key, from {@link #key(String, String, int, int)}
+     */
+    public synchronized void remove(String key) {
+        load();
+        removeFile(key + SUFFIX);
+    }
+
+    /**
+     * Saves a thumbnail, evicting the least recently used ones if the cache
+     * is over its size. Failures are logged and otherwise ignored.
+     *
+     * @param key the key, from {@link #key(String, String, int, int)}
+     * @param bitmap the thumbnail
+     */
+    public void put(String key, Bitmap bitmap) {
+        String name = key + SUFFIX;
+        File file = new File(directory, name);
+        File temp = null;
+        try {
+            synchronized (this) {
+                load();
+            }
+            // Written under a unique name and renamed, so readers never see part of a file
+            temp = File.createTempFile(key, TEMP_SUFFIX, directory);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+                if (!bitmap.compress(Bitmap.CompressFormat.WEBP_LOSSY, QUALITY, out)) {
+                    throw new IOException("Could not encode thumbnail");
+                }
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving thumbnail: " + e.getMessage());
+            if (temp != null) {
+                temp.delete();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            Long previous = entries.put(name, file.length());
+            size += file.length() - (previous != null ? previous : 0);
+            trimToSize(maxBytes);
+        }
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until the cache holds at
+     * most the given number of bytes.
+     *
+     * @param maxBytes the number of bytes to keep, or 0 to empty the cache
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        load();
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (size > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            new File(directory, entry.getKey()).delete();
+            size -= entry.getValue();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Gets the total size of the thumbnail files.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        load();
+        return size;
+    }
+
+    /**
+     * Gets the number of thumbnails read from the cache.
+     *
+     * @return the hit count
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of thumbnails that were not in the cache.
+     *
+     * @return the miss count
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of thumbnails deleted to keep the cache under its size.
+     *
+     * @return the eviction count
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    private void removeFile(String name) {
+        Long length = entries.remove(name);
+        if (length != null) {
+            size -= length;
+            new File(directory, name).delete();
+        }
+    }
+
+    /**
+     * Lists the existing thumbnails, oldest use first, the first time the
+     * cache is used. Called with the lock held.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Could not create " + directory);
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX)) {
+                entries.put(name, file.length());
+                size += file.length();
+            } else if (name.endsWith(TEMP_SUFFIX)) {
+                // Left by a write that was interrupted
+                file.delete();
+            }
+        }
+        trimToSize(maxBytes);
+    }
+}
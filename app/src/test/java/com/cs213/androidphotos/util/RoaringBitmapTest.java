@@ -0,0 +1,172 @@
+package com.cs213.androidphotos.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link RoaringBitmap} against a {@link TreeSet} holding the same values.
+ */
+public class RoaringBitmapTest {
+    private static final int ROUNDS = 100;
+
+    @Test
+    public void addRemoveContains_matchTreeSet() {
+        Random random = new Random(1);
+        for (int round = 0; round < ROUNDS; round++) {
+            RoaringBitmap bitmap = new RoaringBitmap();
+            TreeSet<Integer> expected = new TreeSet<>();
+            int range = range(random);
+            int operations = random.nextInt(20000);
+            for (int i = 0; i < operations; i++) {
+                int value = random.nextInt(range);
+                if (random.nextInt(4) == 0) {
+                    assertEquals(expected.remove(value), bitmap.remove(value));
+                } else {
+                    assertEquals(expected.add(value), bitmap.add(value));
+                }
+            }
+            assertContents(expected, bitmap);
+            for (int i = 0; i < 1000; i++) {
+                int value = random.nextInt(range + 10);
+                assertEquals(expected.contains(value), bitmap.contains(value));
+            }
+        }
+    }
+
+    @Test
+    public void denseContainer_survivesGrowingAndShrinking() {
+        // More than 4096 values under one high key switches to a bitmap container and back
+        RoaringBitmap bitmap = new RoaringBitmap();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int value = 0; value < 10000; value++) {
+            bitmap.add(value);
+            expected.add(value);
+        }
+        assertContents(expected, bitmap);
+        for (int value = 0; value < 10000; value += 2) {
+            bitmap.remove(value);
+            expected.remove(value);
+        }
+        assertContents(expected, bitmap);
+        for (int value = 1; value < 10000; value += 2) {
+            bitmap.remove(value);
+            expected.remove(value);
+        }
+        assertTrue(bitmap.isEmpty());
+        assertContents(expected, bitmap);
+    }
+
+    @Test
+    public void setOperations_matchTreeSet() {
+        Random random = new Random(2);
+        for (int round = 0; round < ROUNDS; round++) {
+            int range = range(random);
+            TreeSet<Integer> a = randomSet(random, range);
+            TreeSet<Integer> b = randomSet(random, range);
+            RoaringBitmap bitmapA = bitmapOf(a);
+            RoaringBitmap bitmapB = bitmapOf(b);
+
+            TreeSet<Integer> and = new TreeSet<>(a);
+            and.retainAll(b);
+            assertContents(and, RoaringBitmap.and(bitmapA, bitmapB));
+
+            TreeSet<Integer> andNot = new TreeSet<>(a);
+            andNot.removeAll(b);
+            assertContents(andNot, RoaringBitmap.andNot(bitmapA, bitmapB));
+
+            TreeSet<Integer> or = new TreeSet<>(a);
+            or.addAll(b);
+            assertContents(or, RoaringBitmap.or(bitmapA, bitmapB));
+
+            // The operands are left unchanged
+            assertContents(a, bitmapA);
+            assertContents(b, bitmapB);
+
+            bitmapA.orInPlace(bitmapB);
+            assertContents(or, bitmapA);
+            assertContents(b, bitmapB);
+        }
+    }
+
+    @Test
+    public void nextValue_matchesCeiling() {
+        Random random = new Random(3);
+        for (int round = 0; round < ROUNDS; round++) {
+            int range = range(random);
+            TreeSet<Integer> expected = randomSet(random, range);
+            RoaringBitmap bitmap = bitmapOf(expected);
+            for (int i = 0; i < 200; i++) {
+                int from = random.nextInt(range + 10);
+                Integer ceiling = expected.ceiling(from);
+                assertEquals(ceiling == null ? -1 : ceiling.intValue(), bitmap.nextValue(from));
+            }
+        }
+    }
+
+    @Test
+    public void copy_isIndependent() {
+        Random random = new Random(4);
+        TreeSet<Integer> expected = randomSet(random, 1 << 20);
+        expected.add(7);
+        RoaringBitmap bitmap = bitmapOf(expected);
+        RoaringBitmap copy = bitmap.copy();
+        copy.add(-1 >>> 1);
+        copy.remove(expected.first());
+        copy.orInPlace(bitmapOf(randomSet(random, 1 << 20)));
+        assertContents(expected, bitmap);
+        bitmap.clear();
+        assertTrue(bitmap.isEmpty());
+        assertTrue(copy.contains(-1 >>> 1));
+    }
+
+    /**
+     * Picks a value range that is sometimes sparse, sometimes dense and
+     * sometimes spread over many high keys.
+     */
+    private static int range(Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return 1 << 16;
+            case 1:
+                return 3 << 16;
+            default:
+                return 1 << 24;
+        }
+    }
+
+    private static TreeSet<Integer> randomSet(Random random, int range) {
+        TreeSet<Integer> set = new TreeSet<>();
+        int size = random.nextInt(3) == 0 ? random.nextInt(100) : random.nextInt(Math.min(range / 4, 30000));
+        for (int i = 0; i < size; i++) {
+            set.add(random.nextInt(range));
+        }
+        return set;
+    }
+
+    private static RoaringBitmap bitmapOf(TreeSet<Integer> values) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        for (int value : values) {
+            bitmap.add(value);
+        }
+        return bitmap;
+    }
+
+    private static void assertContents(TreeSet<Integer> expected, RoaringBitmap actual) {
+        assertEquals(expected.size(), actual.cardinality());
+        assertEquals(expected.isEmpty(), actual.isEmpty());
+        List<Integer> values = new ArrayList<>();
+        actual.forEach(values::add);
+        Iterator<Integer> it = expected.iterator();
+        for (int value : values) {
+            assertEquals(it.next().intValue(), value);
+        }
+        assertFalse(it.hasNext());
+    }
+}
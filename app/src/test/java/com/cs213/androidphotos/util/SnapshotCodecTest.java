@@ -0,0 +1,107 @@
+package com.cs213.androidphotos.util;
+
+import com.cs213.androidphotos.model.Album;
+import com.cs213.androidphotos.model.Photo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that snapshots round-trip, that older versions stay readable and
+ * that damaged snapshots are rejected rather than decoded.
+ */
+public class SnapshotCodecTest {
+
+    @Test
+    public void write_roundTrips() throws IOException {
+        List<Album> albums = TagQueryTest.randomLibrary(new Random(8), 200, 4);
+        SnapshotCodec.Snapshot snapshot = read(write(albums, 42));
+        assertEquals(42, snapshot.generation);
+        assertEquals(describe(albums), describe(snapshot.albums));
+        // A photo in several albums is one object again
+        Photo shared = snapshot.albums.get(0).getPhotos().get(0);
+        for (Album album : snapshot.albums) {
+            Photo photo = album.getPhoto(shared.getFilePath());
+            assertTrue(photo == null || photo == shared);
+        }
+    }
+
+    @Test
+    public void read_acceptsVersion2() throws IOException {
+        List<Album> albums = TagQueryTest.randomLibrary(new Random(9), 50, 3);
+        byte[] current = write(albums, 7);
+        // Version 2 is the version 3 payload straight after the version, without length and checksum
+        ByteBuffer version2 = ByteBuffer.allocate(current.length - 8);
+        version2.put(current, 0, 4).putInt(2).put(current, 16, current.length - 16);
+        SnapshotCodec.Snapshot snapshot = read(version2.array());
+        assertEquals(7, snapshot.generation);
+        assertEquals(describe(albums), describe(snapshot.albums));
+    }
+
+    @Test
+    public void read_rejectsDamagedSnapshots() throws IOException {
+        Random random = new Random(10);
+        for (int round = 0; round < 3000; round++) {
+            List<Album> albums = TagQueryTest.randomLibrary(random, 1 + random.nextInt(30), 1 + random.nextInt(3));
+            byte[] bytes = write(albums, round);
+            byte[] damaged;
+            switch (random.nextInt(3)) {
+                case 0:
+                    damaged = bytes.clone();
+                    int bit = random.nextInt(damaged.length * 8);
+                    damaged[bit / 8] ^= (byte) (1 << (bit % 8));
+                    break;
+                case 1:
+                    damaged = Arrays.copyOf(bytes, random.nextInt(bytes.length));
+                    break;
+                default:
+                    damaged = bytes.clone();
+                    int start = random.nextInt(damaged.length);
+                    int end = Math.min(damaged.length, start + 1 + random.nextInt(16));
+                    for (int i = start; i < end; i++) {
+                        damaged[i] = (byte) random.nextInt(256);
+                    }
+                    if (Arrays.equals(damaged, bytes)) {
+                        continue;
+                    }
+                    break;
+            }
+            try {
+                read(damaged);
+                fail("Decoded a damaged snapshot in round " + round);
+            } catch (IOException expected) {
+                // Rejected
+            }
+        }
+    }
+
+    private static byte[] write(List<Album> albums, long generation) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SnapshotCodec.write(albums, generation, bytes);
+        return bytes.toByteArray();
+    }
+
+    private static SnapshotCodec.Snapshot read(byte[] bytes) throws IOException {
+        return SnapshotCodec.read(new ByteArrayInputStream(bytes));
+    }
+
+    private static String describe(List<Album> albums) {
+        StringBuilder builder = new StringBuilder();
+        for (Album album : albums) {
+            builder.append(album.getName()).append(" @").append(album.getLastModified()).append('\n');
+            for (Photo photo : album.getPhotos()) {
+                builder.append("  ").append(photo.getFilePath()).append(' ').append(photo.getTags()).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,395 @@
+package com.cs213.androidphotos.util;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.cs213.androidphotos.model.Album;
+import com.cs213.androidphotos.model.Photo;
+import com.cs213.androidphotos.model.PhotoRegistry;
+import com.cs213.androidphotos.model.Tag;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the database schema, its migrations and the replay of mutations
+ * against {@link Mutation#applyTo}, on Robolectric's SQLite. With
+ * {@code -Dbenchmark=true}, also times tag searches run as indexed queries
+ * against the in-memory scan and {@link TagIndex}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class SqliteLibraryStoreTest {
+    private static final int BENCHMARK_PHOTOS = 20_000;
+    private static final int RUNS = 5;
+    private static final String TAG_IDS =
+            "SELECT photo_id FROM tags WHERE type = ? AND norm_value >= ? AND norm_value < ?";
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+    }
+
+    @Test
+    public void load_migratesFileDataAndDeletesFiles() throws IOException {
+        List<Album> albums = new ArrayList<>();
+        Album trip = new Album("Trip");
+        Album family = new Album("Family");
+        Photo beach = new Photo("/photos/beach.jpg");
+        beach.addTag(Tag.of(Tag.TYPE_LOCATION, "Beach"));
+        beach.addTag(Tag.of(Tag.TYPE_PERSON, "Alice"));
+        trip.addPhoto(beach);
+        trip.addPhoto(new Photo("/photos/road.jpg"));
+        family.addPhoto(beach);
+        albums.add(trip);
+        albums.add(family);
+
+        AlbumShardStore files = new AlbumShardStore(context.getFilesDir());
+        files.load(new HashSet<>());
+        files.commit(files.prepareCheckpoint(albums, new HashSet<>(albums)));
+        // Left in the journal, so the migration must include the replay
+        Mutation tagged = Mutation.tagAdded("Family", "/photos/beach.jpg", Tag.TYPE_PERSON, "Bob");
+        files.append(Collections.singletonList(tagged));
+        tagged.applyTo(albums, new HashSet<>());
+
+        SqliteLibraryStore store = new SqliteLibraryStore(context);
+        List<Album> loaded = store.load(new HashSet<>());
+        // Shards hold a copy of a shared photo per album; the data manager merges them after loading
+        new PhotoRegistry().rebuild(loaded);
+        assertEquals(describe(albums), describe(loaded));
+        assertTrue(store.needsFullCheckpoint());
+        assertTrue(new AlbumShardStore(context.getFilesDir()).hasData());
+
+        store.commit(store.prepareCheckpoint(loaded, Collections.emptySet()));
+        assertFalse(store.needsFullCheckpoint());
+        assertFalse(new AlbumShardStore(context.getFilesDir()).hasData());
+
+        SqliteLibraryStore reopened = new SqliteLibraryStore(context);
+        List<Album> reloaded = reopened.load(new HashSet<>());
+        assertEquals(describe(albums), describe(reloaded));
+        assertFalse(reopened.needsFullCheckpoint());
+        // A file shared by two albums is one photo
+        assertSame(reloaded.get(0).getPhoto("/photos/beach.jpg"), reloaded.get(1).getPhoto("/photos/beach.jpg"));
+    }
+
+    @Test
+    public void upgradeFromVersion1_mergesDuplicatePhotos() throws IOException {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath("photos.db"), null);
+        createVersion1Schema(db);
+        db.execSQL("INSERT INTO albums (id, name, position, last_modified) VALUES (1, 'Trip', 0, 10), (2, 'Family', 1, 20)");
+        db.execSQL("INSERT INTO photos (id, path) VALUES (1, '/photos/beach.jpg'), (2, '/photos/beach.jpg'), "
+                + "(3, '/photos/road.jpg'), (4, '/photos/beach.jpg')");
+        // Trip held two copies of the beach photo, Family a third
+        db.execSQL("INSERT INTO album_photos (album_id, photo_id, position) VALUES "
+                + "(1, 1, 0), (1, 3, 1), (1, 2, 2), (2, 4, 0)");
+        db.execSQL("INSERT INTO tags (photo_id, type, value, norm_value, position) VALUES "
+                + "(1, 'person', 'Alice', 'alice', 0), "
+                + "(2, 'person', 'ALICE', 'alice', 0), (2, 'location', 'Beach', 'beach', 1), "
+                + "(4, 'person', 'Bob', 'bob', 0)");
+        db.setVersion(1);
+        db.close();
+
+        SqliteLibraryStore store = new SqliteLibraryStore(context);
+        List<Album> albums = store.load(new HashSet<>());
+        assertFalse(store.needsFullCheckpoint());
+
+        assertEquals(2, albums.size());
+        Album trip = albums.get(0);
+        Album family = albums.get(1);
+        assertEquals(Arrays.asList("/photos/beach.jpg", "/photos/road.jpg"), paths(trip));
+        assertEquals(Collections.singletonList("/photos/beach.jpg"), paths(family));
+        Photo beach = trip.getPhoto("/photos/beach.jpg");
+        assertSame(beach, family.getPhoto("/photos/beach.jpg"));
+        assertEquals(new HashSet<>(Arrays.asList(Tag.of(Tag.TYPE_PERSON, "Alice"), Tag.of(Tag.TYPE_PERSON, "Bob"),
+                Tag.of(Tag.TYPE_LOCATION, "Beach"))), new HashSet<>(beach.getTags()));
+
+        SQLiteDatabase upgraded = SQLiteDatabase.openDatabase(
+                context.getDatabasePath("photos.db").getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            assertEquals(2, upgraded.getVersion());
+            assertEquals(2, DatabaseUtils.longForQuery(upgraded, "SELECT COUNT(*) FROM photos", null));
+            assertEquals(1, DatabaseUtils.longForQuery(upgraded,
+                    "SELECT COUNT(*) FROM sqlite_master WHERE name = 'photos_path' AND sql LIKE 'CREATE UNIQUE%'", null));
+        } finally {
+            upgraded.close();
+        }
+    }
+
+    @Test
+    public void append_skipsMutationsThatNoLongerApply() throws IOException {
+        SqliteLibraryStore store = new SqliteLibraryStore(context);
+        List<Album> albums = store.load(new HashSet<>());
+        List<Mutation> mutations = Arrays.asList(
+                Mutation.albumCreated("Trip"),
+                Mutation.albumCreated("Family"),
+                Mutation.albumCreated("Trip"),
+                Mutation.photoAdded("Trip", "/photos/beach.jpg", null),
+                Mutation.photoAdded("Trip", "/photos/road.jpg", null),
+                Mutation.photoAdded("Family", "/photos/beach.jpg", "Trip"),
+                Mutation.photoAdded("Trip", "/photos/beach.jpg", null),
+                Mutation.photoAdded("Gone", "/photos/beach.jpg", null),
+                // Shared photo, so the tag is journaled for both albums and stored once
+                Mutation.tagAdded("Trip", "/photos/beach.jpg", Tag.TYPE_PERSON, "Alice"),
+                Mutation.tagAdded("Family", "/photos/beach.jpg", Tag.TYPE_PERSON, "alice"),
+                Mutation.tagAdded("Trip", "/photos/beach.jpg", "animal", "Cat"),
+                Mutation.tagRemoved("Trip", "/photos/road.jpg", Tag.TYPE_PERSON, "Alice"),
+                // Family already holds the photo, so it goes back to the end of Trip
+                Mutation.photoMoved("Trip", "Family", "/photos/beach.jpg"),
+                Mutation.photoMoved("Trip", "Trip", "/photos/road.jpg"),
+                Mutation.photoMoved("Trip", "Gone", "/photos/road.jpg"),
+                Mutation.albumRenamed("Trip", "Family"),
+                Mutation.albumRenamed("Gone", "Elsewhere"),
+                Mutation.photoRemoved("Family", "/photos/road.jpg"),
+                Mutation.albumDeleted("Gone"));
+        for (Mutation mutation : mutations) {
+            mutation.applyTo(albums, new HashSet<>());
+        }
+        store.append(mutations);
+
+        List<Album> loaded = new SqliteLibraryStore(context).load(new HashSet<>());
+        assertEquals(describe(albums), describe(loaded));
+        assertEquals(Arrays.asList("/photos/road.jpg", "/photos/beach.jpg"), paths(loaded.get(0)));
+        assertEquals(Collections.singletonList(Tag.of(Tag.TYPE_PERSON, "Alice")),
+                loaded.get(1).getPhoto("/photos/beach.jpg").getTags());
+    }
+
+    @Test
+    public void append_matchesApplyToForRandomMutations() throws IOException {
+        Random random = new Random(7);
+        SqliteLibraryStore store = new SqliteLibraryStore(context);
+        List<Album> albums = store.load(new HashSet<>());
+        String[] names = {"A", "B", "C", "D"};
+        String[] paths = {"/p/1.jpg", "/p/2.jpg", "/p/3.jpg", "/p/4.jpg", "/p/5.jpg", "/p/6.jpg"};
+        String[] values = {"Alice", "alice", "Bob", "Home"};
+
+        for (int batch = 0; batch < 40; batch++) {
+            List<Mutation> mutations = new ArrayList<>();
+            for (int i = 0; i < 25; i++) {
+                String name = names[random.nextInt(names.length)];
+                String other = names[random.nextInt(names.length)];
+                String path = paths[random.nextInt(paths.length)];
+                String type = random.nextBoolean() ? Tag.TYPE_PERSON : Tag.TYPE_LOCATION;
+                String value = values[random.nextInt(values.length)];
+                Mutation mutation;
+                switch (random.nextInt(8)) {
+                    case 0:
+                        mutation = random.nextInt(3) == 0 ? Mutation.albumDeleted(name) : Mutation.albumCreated(name);
+                        break;
+                    case 1:
+                        mutation = Mutation.albumRenamed(name, other);
+                        break;
+                    case 2:
+                    case 3:
+                        // Like the data manager, share the photo with an album already holding the file
+                        mutation = Mutation.photoAdded(name, path, holder(albums, path));
+                        break;
+                    case 4:
+                        mutation = Mutation.photoRemoved(name, path);
+                        break;
+                    case 5:
+                        mutation = Mutation.photoMoved(name, other, path);
+                        break;
+                    case 6:
+                        mutation = Mutation.tagAdded(name, path, type, value);
+                        break;
+                    default:
+                        mutation = Mutation.tagRemoved(name, path, type, value);
+                        break;
+                }
+                mutation.applyTo(albums, new HashSet<>());
+                mutations.add(mutation);
+            }
+            store.append(mutations);
+
+            List<Album> loaded = new SqliteLibraryStore(context).load(new HashSet<>());
+            assertEquals("batch " + batch, describe(albums), describe(loaded));
+        }
+    }
+
+    @Test
+    public void tagQueries_timing() throws IOException {
+        Assume.assumeTrue("Run with -Dbenchmark=true", TagSearchBenchmarkTest.BENCHMARK);
+        List<Album> albums = TagQueryTest.randomLibrary(new Random(11), BENCHMARK_PHOTOS, 20);
+        new PhotoRegistry().rebuild(albums);
+        TagIndex index = new TagIndex();
+        index.rebuild(albums);
+        SqliteLibraryStore store = new SqliteLibraryStore(context);
+        store.load(new HashSet<>());
+        store.commit(store.prepareCheckpoint(albums, new HashSet<>(albums)));
+
+        // The prefix, conjunction and disjunction searches, each as a query, an indexed SQL query and a scan
+        List<TagQuery> queries = Arrays.asList(
+                TagQuery.tag(Tag.TYPE_PERSON, "al"),
+                TagQuery.and(TagQuery.tag(Tag.TYPE_PERSON, "al"), TagQuery.tag(Tag.TYPE_LOCATION, "pa")),
+                TagQuery.or(TagQuery.tag(Tag.TYPE_PERSON, "bob"), TagQuery.tag(Tag.TYPE_LOCATION, "home")));
+        List<String> sql = Arrays.asList(
+                "SELECT path FROM photos WHERE id IN (" + TAG_IDS + ")",
+                "SELECT path FROM photos WHERE id IN (" + TAG_IDS + " INTERSECT " + TAG_IDS + ")",
+                "SELECT path FROM photos WHERE id IN (" + TAG_IDS + " UNION " + TAG_IDS + ")");
+        List<String[]> args = Arrays.asList(
+                tagArgs(Tag.TYPE_PERSON, "al"),
+                tagArgs(Tag.TYPE_PERSON, "al", Tag.TYPE_LOCATION, "pa"),
+                tagArgs(Tag.TYPE_PERSON, "bob", Tag.TYPE_LOCATION, "home"));
+        List<Predicate<Photo>> matchers = Arrays.asList(
+                photo -> TagQueryTest.hasTag(photo, Tag.TYPE_PERSON, "al"),
+                photo -> TagQueryTest.hasTag(photo, Tag.TYPE_PERSON, "al")
+                        && TagQueryTest.hasTag(photo, Tag.TYPE_LOCATION, "pa"),
+                photo -> TagQueryTest.hasTag(photo, Tag.TYPE_PERSON, "bob")
+                        || TagQueryTest.hasTag(photo, Tag.TYPE_LOCATION, "home"));
+
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(
+                context.getDatabasePath("photos.db").getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            for (int q = 0; q < queries.size(); q++) {
+                List<String> scanned = null;
+                List<String> indexed = null;
+                List<String> queried = null;
+                long scanTime = Long.MAX_VALUE;
+                long indexTime = Long.MAX_VALUE;
+                long sqlTime = Long.MAX_VALUE;
+                for (int run = 0; run < RUNS; run++) {
+                    long start = System.nanoTime();
+                    scanned = sortedPaths(TagQueryTest.scan(albums, matchers.get(q)));
+                    scanTime = Math.min(scanTime, System.nanoTime() - start);
+
+                    start = System.nanoTime();
+                    indexed = sortedPaths(index.photos(queries.get(q).evaluate(index)));
+                    indexTime = Math.min(indexTime, System.nanoTime() - start);
+
+                    start = System.nanoTime();
+                    queried = new ArrayList<>();
+                    try (Cursor cursor = db.rawQuery(sql.get(q), args.get(q))) {
+                        while (cursor.moveToNext()) {
+                            queried.add(cursor.getString(0));
+                        }
+                    }
+                    Collections.sort(queried);
+                    sqlTime = Math.min(sqlTime, System.nanoTime() - start);
+                }
+
+                assertEquals(queries.get(q).toString(), scanned, indexed);
+                assertEquals(queries.get(q).toString(), scanned, queried);
+                System.out.printf(Locale.ROOT, "%-45s %6d photos  scan %8.2f ms  index %8.2f ms  sqlite %8.2f ms%n",
+                        queries.get(q), scanned.size(), scanTime / 1e6, indexTime / 1e6, sqlTime / 1e6);
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Expands pairs of tag type and value prefix into the arguments of
+     * {@link #TAG_IDS}, which matches the prefix as a range of the indexed
+     * normalized values.
+     */
+    private static String[] tagArgs(String... typesAndPrefixes) {
+        String[] args = new String[typesAndPrefixes.length / 2 * 3];
+        for (int i = 0; i < typesAndPrefixes.length / 2; i++) {
+            String prefix = typesAndPrefixes[2 * i + 1].toLowerCase(Locale.ROOT);
+            args[3 * i] = typesAndPrefixes[2 * i];
+            args[3 * i + 1] = prefix;
+            args[3 * i + 2] = prefix + Character.MAX_VALUE;
+        }
+        return args;
+    }
+
+    private static List<String> sortedPaths(List<Photo> photos) {
+        List<String> paths = new ArrayList<>(photos.size());
+        for (Photo photo : photos) {
+            paths.add(photo.getFilePath());
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private static String holder(List<Album> albums, String path) {
+        for (Album album : albums) {
+            if (album.getPhoto(path) != null) {
+                return album.getName();
+            }
+        }
+        return null;
+    }
+
+    private static List<String> paths(Album album) {
+        List<String> paths = new ArrayList<>();
+        for (Photo photo : album.getPhotos()) {
+            paths.add(photo.getFilePath());
+        }
+        return paths;
+    }
+
+    /**
+     * Lists the albums in order with their photos and tags, and which photos
+     * are shared between albums.
+     */
+    private static String describe(List<Album> albums) {
+        IdentityHashMap<Photo, Integer> photoNumbers = new IdentityHashMap<>();
+        StringBuilder builder = new StringBuilder();
+        for (Album album : albums) {
+            builder.append(album.getName()).append('\n');
+            for (Photo photo : album.getPhotos()) {
+                Integer number = photoNumbers.get(photo);
+                if (number == null) {
+                    number = photoNumbers.size();
+                    photoNumbers.put(photo, number);
+                }
+                builder.append("  #").append(number).append(' ').append(photo.getFilePath())
+                        .append(' ').append(photo.getTags()).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The schema of version 1, which did not make photo paths unique.
+     */
+    private static void createVersion1Schema(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE albums ("
+                + "id INTEGER PRIMARY KEY, "
+                + "name TEXT NOT NULL UNIQUE, "
+                + "position INTEGER NOT NULL, "
+                + "last_modified INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE TABLE photos ("
+                + "id INTEGER PRIMARY KEY, "
+                + "path TEXT NOT NULL)");
+        db.execSQL("CREATE INDEX photos_path ON photos (path)");
+        db.execSQL("CREATE TABLE album_photos ("
+                + "album_id INTEGER NOT NULL REFERENCES albums (id) ON DELETE CASCADE, "
+                + "photo_id INTEGER NOT NULL REFERENCES photos (id) ON DELETE CASCADE, "
+                + "position INTEGER NOT NULL, "
+                + "PRIMARY KEY (album_id, photo_id))");
+        db.execSQL("CREATE INDEX album_photos_order ON album_photos (album_id, position)");
+        db.execSQL("CREATE INDEX album_photos_photo ON album_photos (photo_id)");
+        db.execSQL("CREATE TABLE tags ("
+                + "photo_id INTEGER NOT NULL REFERENCES photos (id) ON DELETE CASCADE, "
+                + "type TEXT NOT NULL, "
+                + "value TEXT NOT NULL, "
+                + "norm_value TEXT NOT NULL, "
+                + "position INTEGER NOT NULL, "
+                + "PRIMARY KEY (photo_id, type, norm_value))");
+        db.execSQL("CREATE INDEX tags_type_value ON tags (type, norm_value)");
+    }
+}
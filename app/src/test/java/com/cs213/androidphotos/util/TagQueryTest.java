@@ -0,0 +1,257 @@
+package com.cs213.androidphotos.util;
+
+import com.cs213.androidphotos.model.Album;
+import com.cs213.androidphotos.model.Photo;
+import com.cs213.androidphotos.model.PhotoRegistry;
+import com.cs213.androidphotos.model.Tag;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link TagQuery} evaluated against a {@link TagIndex} against a scan
+ * of every photo.
+ */
+public class TagQueryTest {
+    private static final String[] PEOPLE = {"Alice", "alan", "Al", "Bob", "bobby", "Carol", "Dave Smith", "Eve"};
+    private static final String[] LOCATIONS = {"New York", "newark", "NYC", "Paris", "park", "Home", "Office"};
+
+    private Random random;
+    private List<Album> albums;
+    private TagIndex index;
+
+    @Before
+    public void setUp() {
+        random = new Random(5);
+        albums = randomLibrary(random, 3000, 6);
+        new PhotoRegistry().rebuild(albums);
+        index = new TagIndex();
+        index.rebuild(albums);
+    }
+
+    @Test
+    public void randomQueries_matchScan() {
+        for (int i = 0; i < 500; i++) {
+            Query query = randomQuery(random, 3);
+            assertEquals(query.query.toString(), scan(albums, query.matcher), evaluate(query.query));
+        }
+    }
+
+    @Test
+    public void randomQueries_matchScanAfterUpdates() {
+        List<Photo> photos = distinctPhotos(albums);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 100; i++) {
+                Photo photo = photos.get(random.nextInt(photos.size()));
+                if (random.nextBoolean() && !photo.getTags().isEmpty()) {
+                    Tag tag = photo.getTags().get(random.nextInt(photo.getTags().size()));
+                    photo.removeTag(tag);
+                    index.removeTag(photo, tag);
+                } else {
+                    Tag tag = randomTag(random);
+                    if (photo.addTag(tag)) {
+                        index.addTag(photo, tag);
+                    }
+                }
+            }
+            // Take a photo out of the library altogether
+            Photo removed = photos.remove(random.nextInt(photos.size()));
+            for (Album album : albums) {
+                album.removePhoto(removed);
+            }
+            index.removePhoto(removed);
+
+            for (int i = 0; i < 50; i++) {
+                Query query = randomQuery(random, 3);
+                assertEquals(query.query.toString(), scan(albums, query.matcher), evaluate(query.query));
+            }
+        }
+    }
+
+    @Test
+    public void parse_bindsNotThenAndThenOr() throws ParseException {
+        assertEquals("((person=\"al\" AND NOT location=\"home\") OR person=\"bob\")",
+                TagQuery.parse("person=Al and not location=HOME or person=bob").toString());
+        assertEquals("(person=\"al\" AND (location=\"home\" OR location=\"park\"))",
+                TagQuery.parse("PERSON=al AND (location=home OR location=park)").toString());
+        assertEquals("NOT NOT person=\"eve\"", TagQuery.parse("not not person=eve").toString());
+    }
+
+    @Test
+    public void parse_readsQuotedValues() throws ParseException {
+        assertEquals("(location=\"new york\" AND person=\"dave (work)\")",
+                TagQuery.parse("location=\"New York\" AND person = \"Dave (work)\"").toString());
+        assertEquals("person=\"\"", TagQuery.parse("person=\"\"").toString());
+    }
+
+    @Test
+    public void parse_matchesBuiltQuery() throws ParseException {
+        TagQuery built = TagQuery.or(
+                TagQuery.and(TagQuery.tag("person", "Al"), TagQuery.not(TagQuery.tag("location", "new"))),
+                TagQuery.tag("location", "Paris"));
+        TagQuery parsed = TagQuery.parse("(person=al AND NOT location=NEW) OR location=paris");
+        assertEquals(built.toString(), parsed.toString());
+        assertEquals(evaluate(built), evaluate(parsed));
+    }
+
+    @Test
+    public void parse_rejectsMalformedQueries() {
+        String[] malformed = {
+                "", "person", "person=alice AND", "(person=alice", "person=alice)",
+                "animal=cat", "person=\"alice", "person=alice location=home", "AND person=alice",
+        };
+        for (String text : malformed) {
+            try {
+                TagQuery.parse(text);
+                fail("Parsed " + text);
+            } catch (ParseException expected) {
+                assertTrue(expected.getErrorOffset() >= 0 && expected.getErrorOffset() <= text.length());
+            }
+        }
+    }
+
+    @Test
+    public void emptyPrefix_matchesEveryValueOfType() {
+        assertEquals(scan(albums, photo -> hasTag(photo, "person", "")),
+                evaluate(TagQuery.tag("person", "")));
+    }
+
+    private List<Photo> evaluate(TagQuery query) {
+        return index.photos(query.evaluate(index));
+    }
+
+    /**
+     * A query and an equivalent check of a single photo.
+     */
+    static final class Query {
+        final TagQuery query;
+        final Predicate<Photo> matcher;
+
+        Query(TagQuery query, Predicate<Photo> matcher) {
+            this.query = query;
+            this.matcher = matcher;
+        }
+    }
+
+    static Query randomQuery(Random random, int depth) {
+        int kind = depth == 0 ? 0 : random.nextInt(4);
+        switch (kind) {
+            case 1:
+            case 2: {
+                int count = 2 + random.nextInt(2);
+                TagQuery[] operands = new TagQuery[count];
+                List<Predicate<Photo>> matchers = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    Query operand = randomQuery(random, depth - 1);
+                    operands[i] = operand.query;
+                    matchers.add(operand.matcher);
+                }
+                if (kind == 1) {
+                    return new Query(TagQuery.and(operands), photo -> matchers.stream().allMatch(m -> m.test(photo)));
+                }
+                return new Query(TagQuery.or(operands), photo -> matchers.stream().anyMatch(m -> m.test(photo)));
+            }
+            case 3: {
+                Query operand = randomQuery(random, depth - 1);
+                return new Query(TagQuery.not(operand.query), operand.matcher.negate());
+            }
+            default: {
+                String type = random.nextBoolean() ? Tag.TYPE_PERSON : Tag.TYPE_LOCATION;
+                String[] values = type.equals(Tag.TYPE_PERSON) ? PEOPLE : LOCATIONS;
+                String value = values[random.nextInt(values.length)];
+                // Cut to a prefix, which may be empty, and vary the case of the query
+                String prefix = value.substring(0, random.nextInt(value.length() + 1));
+                if (random.nextBoolean()) {
+                    prefix = prefix.toUpperCase(Locale.ROOT);
+                }
+                String matched = prefix;
+                return new Query(TagQuery.tag(random.nextBoolean() ? type.toUpperCase(Locale.ROOT) : type, prefix),
+                        photo -> hasTag(photo, type, matched));
+            }
+        }
+    }
+
+    /**
+     * Checks a photo the way the search did before the tag index, comparing
+     * each tag in turn.
+     */
+    static boolean hasTag(Photo photo, String type, String valuePrefix) {
+        for (Tag tag : photo.getTags()) {
+            if (tag.getType().equalsIgnoreCase(type)
+                    && tag.getValue().toLowerCase(Locale.ROOT).startsWith(valuePrefix.toLowerCase(Locale.ROOT))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the photos of every album that match, each once, in id order like
+     * {@link TagIndex#photos(RoaringBitmap)}.
+     */
+    static List<Photo> scan(List<Album> albums, Predicate<Photo> matcher) {
+        List<Photo> results = new ArrayList<>();
+        for (Photo photo : distinctPhotos(albums)) {
+            if (matcher.test(photo)) {
+                results.add(photo);
+            }
+        }
+        Collections.sort(results, (a, b) -> Integer.compare(a.getId(), b.getId()));
+        return results;
+    }
+
+    static List<Photo> distinctPhotos(List<Album> albums) {
+        Map<Photo, Boolean> seen = new IdentityHashMap<>();
+        List<Photo> photos = new ArrayList<>();
+        for (Album album : albums) {
+            for (Photo photo : album.getPhotos()) {
+                if (seen.put(photo, Boolean.TRUE) == null) {
+                    photos.add(photo);
+                }
+            }
+        }
+        return photos;
+    }
+
+    /**
+     * Builds albums of photos with up to four random tags, some photos being
+     * in more than one album.
+     */
+    static List<Album> randomLibrary(Random random, int photoCount, int albumCount) {
+        List<Album> albums = new ArrayList<>();
+        for (int i = 0; i < albumCount; i++) {
+            albums.add(new Album("Album " + i));
+        }
+        for (int i = 0; i < photoCount; i++) {
+            Photo photo = new Photo("/photos/" + i + ".jpg");
+            int tags = random.nextInt(5);
+            for (int j = 0; j < tags; j++) {
+                photo.addTag(randomTag(random));
+            }
+            albums.get(random.nextInt(albumCount)).addPhoto(photo);
+            if (random.nextInt(5) == 0) {
+                albums.get(random.nextInt(albumCount)).addPhoto(photo);
+            }
+        }
+        return albums;
+    }
+
+    static Tag randomTag(Random random) {
+        if (random.nextBoolean()) {
+            return Tag.of(Tag.TYPE_PERSON, PEOPLE[random.nextInt(PEOPLE.length)]);
+        }
+        return Tag.of(Tag.TYPE_LOCATION, LOCATIONS[random.nextInt(LOCATIONS.length)]);
+    }
+}
@@ -0,0 +1,177 @@
+package com.cs213.androidphotos.util;
+
+import com.cs213.androidphotos.model.Album;
+import com.cs213.androidphotos.model.Photo;
+import com.cs213.androidphotos.model.PhotoRegistry;
+import com.cs213.androidphotos.model.Tag;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares tag searches evaluated with the {@link TagIndex} against scanning
+ * every photo of every album, as the search did before the index. The results
+ * must always be the same. The timings over a library of 100,000 photos are
+ * only measured when the tests run with {@code -Dbenchmark=true}, and only
+ * printed, since they depend on the machine running the tests.
+ */
+public class TagSearchBenchmarkTest {
+    /** Set with -Dbenchmark=true to run the timing tests. */
+    static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+    private static final int PHOTOS = 100_000;
+    private static final int TEST_PHOTOS = 10_000;
+    private static final int ALBUMS = 200;
+    private static final int RUNS = 5;
+    private static final String[] SYLLABLES = {"al", "be", "ca", "do", "el", "fi", "go", "ha", "jo", "ka", "li", "ma"};
+
+    private List<TagQuery> queries;
+    private List<Predicate<Photo>> matchers;
+
+    @Test
+    public void indexedSearch_matchesScan() throws Exception {
+        List<Album> albums = buildLibrary(TEST_PHOTOS);
+        TagIndex index = new TagIndex();
+        index.rebuild(albums);
+
+        for (int q = 0; q < queries.size(); q++) {
+            TagQuery query = queries.get(q);
+            assertEquals(query.toString(), ids(scan(albums, matchers.get(q))),
+                    ids(index.photos(query.evaluate(index))));
+        }
+    }
+
+    @Test
+    public void indexedSearch_timing() throws Exception {
+        Assume.assumeTrue("Run with -Dbenchmark=true", BENCHMARK);
+        List<Album> albums = buildLibrary(PHOTOS);
+        TagIndex index = new TagIndex();
+        index.rebuild(albums);
+
+        for (int q = 0; q < queries.size(); q++) {
+            TagQuery query = queries.get(q);
+            Predicate<Photo> matcher = matchers.get(q);
+
+            List<Photo> indexed = null;
+            List<Photo> scanned = null;
+            long indexTime = Long.MAX_VALUE;
+            long scanTime = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                indexed = index.photos(query.evaluate(index));
+                indexTime = Math.min(indexTime, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                scanned = scan(albums, matcher);
+                scanTime = Math.min(scanTime, System.nanoTime() - start);
+            }
+
+            assertEquals(query.toString(), ids(scanned), ids(indexed));
+            System.out.printf(Locale.ROOT, "%-60s %6d photos  scan %8.2f ms  index %8.2f ms%n",
+                    query, indexed.size(), scanTime / 1e6, indexTime / 1e6);
+        }
+    }
+
+    /**
+     * Builds a library of photos with one to four tags each, and the queries
+     * to run against it with the equivalent checks of a single photo.
+     */
+    private List<Album> buildLibrary(int photoCount) throws Exception {
+        Random random = new Random(6);
+        List<String> people = names(random, 2000);
+        List<String> locations = names(random, 300);
+
+        List<Album> albums = new ArrayList<>();
+        for (int i = 0; i < ALBUMS; i++) {
+            albums.add(new Album("Album " + i));
+        }
+        for (int i = 0; i < photoCount; i++) {
+            Photo photo = new Photo("/photos/" + i + ".jpg");
+            int tags = 1 + random.nextInt(4);
+            for (int j = 0; j < tags; j++) {
+                photo.addTag(random.nextInt(3) == 0
+                        ? Tag.of(Tag.TYPE_LOCATION, locations.get(random.nextInt(locations.size())))
+                        : Tag.of(Tag.TYPE_PERSON, people.get(random.nextInt(people.size()))));
+            }
+            albums.get(random.nextInt(ALBUMS)).addPhoto(photo);
+            if (random.nextInt(10) == 0) {
+                albums.get(random.nextInt(ALBUMS)).addPhoto(photo);
+            }
+        }
+        new PhotoRegistry().rebuild(albums);
+
+        String person = people.get(0);
+        String location = locations.get(0);
+        queries = Arrays.asList(
+                TagQuery.tag("person", person),
+                TagQuery.tag("person", person.substring(0, 2)),
+                TagQuery.and(TagQuery.tag("person", person), TagQuery.tag("location", location)),
+                TagQuery.and(TagQuery.tag("person", person.substring(0, 2)), TagQuery.tag("location", location.substring(0, 2))),
+                TagQuery.or(TagQuery.tag("person", person), TagQuery.tag("location", location)),
+                TagQuery.parse("person=" + person.substring(0, 4) + " AND NOT location=" + location.substring(0, 2)));
+        matchers = Arrays.asList(
+                photo -> TagQueryTest.hasTag(photo, "person", person),
+                photo -> TagQueryTest.hasTag(photo, "person", person.substring(0, 2)),
+                photo -> TagQueryTest.hasTag(photo, "person", person)
+                        && TagQueryTest.hasTag(photo, "location", location),
+                photo -> TagQueryTest.hasTag(photo, "person", person.substring(0, 2))
+                        && TagQueryTest.hasTag(photo, "location", location.substring(0, 2)),
+                photo -> TagQueryTest.hasTag(photo, "person", person)
+                        || TagQueryTest.hasTag(photo, "location", location),
+                photo -> TagQueryTest.hasTag(photo, "person", person.substring(0, 4))
+                        && !TagQueryTest.hasTag(photo, "location", location.substring(0, 2)));
+        return albums;
+    }
+
+    /**
+     * Finds the matching photos by checking the tags of every photo of every
+     * album, skipping photos already found in another album.
+     */
+    private static List<Photo> scan(List<Album> albums, Predicate<Photo> matcher) {
+        Set<Photo> seen = new HashSet<>();
+        List<Photo> results = new ArrayList<>();
+        for (Album album : albums) {
+            for (Photo photo : album.getPhotos()) {
+                if (matcher.test(photo) && seen.add(photo)) {
+                    results.add(photo);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static List<Integer> ids(List<Photo> photos) {
+        List<Integer> ids = new ArrayList<>(photos.size());
+        for (Photo photo : photos) {
+            ids.add(photo.getId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static List<String> names(Random random, int count) {
+        Set<String> names = new HashSet<>();
+        while (names.size() < count) {
+            StringBuilder name = new StringBuilder();
+            int syllables = 2 + random.nextInt(3);
+            for (int i = 0; i < syllables; i++) {
+                name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+            names.add(name.toString());
+        }
+        return new ArrayList<>(names);
+    }
+}